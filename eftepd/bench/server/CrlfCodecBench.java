@@ -0,0 +1,237 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Throughput of ASCII mode line end translation: the String and regex
+ * conversion RETR and STOR used to do on every block against
+ * {@link CrlfCodec}, over the same text cut into transfer sized blocks, in
+ * both directions. The local separator is LF whatever the platform.
+ * <p>
+ * Not part of the server. Build and run from <code>eftepd</code>:
+ *
+ * <pre>
+ * javac -d /tmp/bench -sourcepath src bench/server/CrlfCodecBench.java
+ * java -cp /tmp/bench server.CrlfCodecBench [MiB [rounds]]
+ * </pre>
+ *
+ * @author athantor
+ *
+ */
+public final class CrlfCodecBench {
+
+	/* same as ClientConnection.XFRBLKSIZE */
+	private static final Integer BLKSIZE = 256 * 1024;
+	private static final String SEP = "\n";
+
+	/* keeps the JIT from dropping the work */
+	private static long sink = 0;
+
+	private interface Conv {
+		/**
+		 * @return bytes produced
+		 */
+		long run(byte[] data);
+	}
+
+	private CrlfCodecBench() {
+	}
+
+	public static void main(String[] args) {
+		Integer mib = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		Integer rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		byte[] lf = makeText(mib * 1024 * 1024);
+		byte[] crlf = new String(lf).replace(SEP, CrlfCodec.CRLF).getBytes();
+
+		check(lf, crlf);
+
+		System.out.printf("%d MiB of text, %d KiB blocks, %d rounds%n", mib,
+				BLKSIZE / 1024, rounds);
+
+		run("LF -> CR LF (RETR), old", lf, rounds, new Conv() {
+			@Override
+			public long run(byte[] data) {
+				return oldConvert(data, SEP, CrlfCodec.CRLF);
+			}
+		});
+		run("LF -> CR LF (RETR), codec", lf, rounds, new Conv() {
+			@Override
+			public long run(byte[] data) {
+				return codecConvert(data, CrlfCodec.toNet(SEP));
+			}
+		});
+		run("CR LF -> LF (STOR), old", crlf, rounds, new Conv() {
+			@Override
+			public long run(byte[] data) {
+				return oldConvert(data, CrlfCodec.CRLF, SEP);
+			}
+		});
+		run("CR LF -> LF (STOR), codec", crlf, rounds, new Conv() {
+			@Override
+			public long run(byte[] data) {
+				return codecConvert(data, CrlfCodec.fromNet(SEP));
+			}
+		});
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+
+	/**
+	 * Lines of 0 to 119 characters, mostly ASCII with some two and three
+	 * byte UTF-8 ones
+	 */
+	private static byte[] makeText(Integer size) {
+		final String chars = "abcdefghijklmnopqrstuvwxyz "
+				+ "ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789 .,;:-_\t"
+				+ "\u0105\u0107\u0119\u0142\u0144\u00f3\u015b\u017a\u017c"
+				+ "\u20ac";
+		Random rnd = new Random(2009);
+		StringBuilder sb = new StringBuilder(size);
+
+		while (sb.length() < size) {
+			Integer n = rnd.nextInt(120);
+
+			for (int i = 0; i < n; i++) {
+				sb.append(chars.charAt(rnd.nextInt(chars.length())));
+			}
+			sb.append(SEP);
+		}
+
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * Both ways must give what a replace over the whole text gives, at any
+	 * block size
+	 */
+	private static void check(byte[] lf, byte[] crlf) {
+		Integer len = Math.min(lf.length, 64 * 1024);
+		/* whole lines, so no character is cut in two */
+		while (len > 0 && lf[len - 1] != SEP.charAt(0)) {
+			len--;
+		}
+
+		byte[] in = Arrays.copyOf(lf, len);
+		byte[] net = new String(in).replace(SEP, CrlfCodec.CRLF).getBytes();
+
+		for (Integer blk : new Integer[] { 1, 2, 3, 1023, 1024, BLKSIZE }) {
+			if (!Arrays.equals(net, collect(in, CrlfCodec.toNet(SEP), blk))
+					|| !Arrays.equals(in, collect(net, CrlfCodec
+							.fromNet(SEP), blk))) {
+				throw new IllegalStateException("codec output differs at "
+						+ blk + "B blocks");
+			}
+		}
+	}
+
+	private static byte[] collect(byte[] data, CrlfCodec c, Integer blk) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ByteBuffer out = ByteBuffer.allocate(CrlfCodec.outSize(blk));
+
+		for (int off = 0; off < data.length; off += blk) {
+			ByteBuffer in = ByteBuffer.wrap(data, off, Math.min(blk,
+					data.length - off));
+
+			out.clear();
+			c.convert(in, out);
+			bos.write(out.array(), 0, out.position());
+		}
+
+		out.clear();
+		c.finish(out);
+		bos.write(out.array(), 0, out.position());
+
+		return bos.toByteArray();
+	}
+
+	private static void run(String name, byte[] data, Integer rounds, Conv c) {
+		/* warm up */
+		for (int i = 0; i < 2; i++) {
+			sink += c.run(data);
+		}
+
+		double best = 0, sum = 0;
+		for (int i = 0; i < rounds; i++) {
+			long t = System.nanoTime();
+			sink += c.run(data);
+			double mbs = data.length / 1e6 / ((System.nanoTime() - t) / 1e9);
+
+			best = Math.max(best, mbs);
+			sum += mbs;
+		}
+
+		System.out.printf("%-28s %8.1f MB/s avg %8.1f MB/s best%n", name, sum
+				/ rounds, best);
+	}
+
+	/**
+	 * What RETR and STOR did before {@link CrlfCodec}: a String per block,
+	 * a regex replace and encoding it back
+	 */
+	private static long oldConvert(byte[] data, String f, String t) {
+		byte[] buf = new byte[BLKSIZE];
+		long n = 0;
+
+		for (int off = 0; off < data.length; off += BLKSIZE) {
+			Integer len = Math.min(BLKSIZE, data.length - off);
+			System.arraycopy(data, off, buf, 0, len);
+
+			n += new String(buf, 0, len).replaceAll(f, t).getBytes().length;
+		}
+
+		return n;
+	}
+
+	/**
+	 * The way RETR and STOR use {@link CrlfCodec}: the transfer buffer
+	 * translated into a second one sized for a whole block
+	 */
+	private static long codecConvert(byte[] data, CrlfCodec c) {
+		ByteBuffer buf = ByteBuffer.allocate(BLKSIZE);
+		ByteBuffer cbuf = ByteBuffer.allocate(CrlfCodec.outSize(BLKSIZE));
+		long n = 0;
+
+		for (int off = 0; off < data.length; off += BLKSIZE) {
+			Integer len = Math.min(BLKSIZE, data.length - off);
+			buf.clear();
+			buf.put(data, off, len);
+			buf.flip();
+
+			cbuf.clear();
+			c.convert(buf, cbuf);
+			n += cbuf.position();
+		}
+
+		cbuf.clear();
+		c.finish(cbuf);
+
+		return n + cbuf.position();
+	}
+}
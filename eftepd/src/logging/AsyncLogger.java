@@ -0,0 +1,242 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package logging;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import logging.LogEvent.Kind;
+
+/**
+ * Non-blocking front end of a {@link LogSink}. Callers only put events into
+ * a bounded ring; a single background thread takes them out and writes them
+ * to the sink in batches.
+ * <p>
+ * What happens when the ring is full depends on the {@link Overflow} policy.
+ * Events above {@link Logger.Lvl#NORMAL} are never dropped.
+ * <p>
+ * Reverse lookup of the client's name is started when the event is put, so
+ * it's usually cached by the time the event is written.
+ *
+ * @author athantor
+ *
+ */
+public final class AsyncLogger implements Logger {
+
+	public enum Overflow {
+		/** wait for room */
+		BLOCK,
+		/** drop NORMAL events */
+		DROP,
+		/** keep every n-th NORMAL event, drop the rest */
+		SAMPLE
+	}
+
+	private static final Integer BATCH = 256;
+
+	private final LogSink sink;
+	private final LogRing ring;
+	private final Overflow policy;
+	private final Integer samplerate;
+	private final Consumer consumer;
+
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong overflows = new AtomicLong(0);
+	private final AtomicLong written = new AtomicLong(0);
+
+	/**
+	 * @param s
+	 *            where to write
+	 * @param size
+	 *            ring size
+	 * @param p
+	 *            what to do when the ring is full
+	 * @param rate
+	 *            for {@link Overflow#SAMPLE}: keep one of that many NORMAL
+	 *            events
+	 */
+	public AsyncLogger(LogSink s, Integer size, Overflow p, Integer rate) {
+		if (s == null || p == null || size <= 0 || rate <= 0) {
+			throw new IllegalArgumentException("Invalid logger parameters");
+		}
+
+		sink = s;
+		ring = new LogRing(size);
+		policy = p;
+		samplerate = rate;
+
+		consumer = new Consumer();
+		consumer.start();
+	}
+
+	@Override
+	public void addConnectionMsg(Socket csock, String msg, Lvl l) {
+		if (csock == null && msg == null) {
+			return;
+		}
+
+		put(new LogEvent(Kind.CONNECTION, csock, msg, l));
+	}
+
+	@Override
+	public void addCtlMsg(Socket csock, String msg, Lvl l) {
+		if (csock == null && msg == null) {
+			return;
+		}
+
+		put(new LogEvent(Kind.CONTROL, csock, msg, l));
+	}
+
+	@Override
+	public void addXfrMsg(Socket csock, String msg, Lvl l) {
+		if (csock == null && msg == null) {
+			return;
+		}
+
+		put(new LogEvent(Kind.TRANSFER, csock, msg, l));
+	}
+
+	@Override
+	public void addMiscMsg(Socket csock, String msg, Lvl l) {
+		put(new LogEvent(Kind.MISC, csock, msg, l));
+	}
+
+	private void put(LogEvent e) {
+		HostNameCache.getInstance().prefetch(e.getAddr());
+
+		if (ring.offer(e)) {
+			consumer.wake();
+			return;
+		}
+
+		Long n = overflows.incrementAndGet();
+
+		if (e.getLvl() == Lvl.NORMAL) {
+			if (policy == Overflow.DROP
+					|| (policy == Overflow.SAMPLE && n % samplerate != 0)) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+
+		while (!ring.offer(e)) {
+			consumer.wake();
+			LockSupport.parkNanos(50000L);
+		}
+
+		consumer.wake();
+	}
+
+	/**
+	 * Waits until everything logged so far is written and saves the sink
+	 */
+	@Override
+	public void saveLog() {
+		Long upto = ring.published();
+
+		while (written.get() < upto) {
+			consumer.wake();
+			LockSupport.parkNanos(100000L);
+		}
+
+		sink.saveLog();
+	}
+
+	/**
+	 * @return number of events dropped because the ring was full
+	 */
+	public Long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of times the ring was found full
+	 */
+	public Long getOverflows() {
+		return overflows.get();
+	}
+
+	/**
+	 * @return number of events handed to the sink
+	 */
+	public Long getWritten() {
+		return written.get();
+	}
+
+	private final class Consumer extends Thread {
+		private volatile Boolean sleeping = false;
+
+		Consumer() {
+			super("eftepd-logger");
+			setDaemon(true);
+		}
+
+		void wake() {
+			if (sleeping) {
+				LockSupport.unpark(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			ArrayList<LogEvent> batch = new ArrayList<LogEvent>(BATCH + 1);
+			long reported = 0L;
+
+			while (true) {
+				LogEvent e;
+				int n = 0;
+				while (n < BATCH && (e = ring.poll()) != null) {
+					batch.add(e);
+					n++;
+				}
+
+				long d = dropped.get();
+				if (d != reported) {
+					batch.add(new LogEvent(Kind.MISC, null, String.format(
+							"Log buffer full; dropped %d event(s) so far", d),
+							Lvl.WARNING));
+					reported = d;
+				}
+
+				if (batch.isEmpty()) {
+					sleeping = true;
+					if (ring.isEmpty()) {
+						LockSupport.parkNanos(10000000L);
+					}
+					sleeping = false;
+					continue;
+				}
+
+				try {
+					sink.write(batch);
+				} catch (RuntimeException ex) {
+					System.err.println("**> Can't write log: " + ex);
+				}
+
+				batch.clear();
+				written.addAndGet(n);
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+
+/**
+ *
+ */
+package logging;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of reverse DNS names. Lookups never block the caller: a name that
+ * isn't known yet is resolved in the background and the caller gets null
+ * (or the address) for now. Names are kept for a TTL; failed lookups are
+ * remembered for a shorter, negative TTL. An expired name is still served
+ * while it's being looked up again.
+ *
+ * @author athantor
+ *
+ */
+public final class HostNameCache {
+
+	private static volatile HostNameCache instance = null;
+
+	private static final Integer MAXENTRIES = 10000;
+
+	private final ConcurrentHashMap<InetAddress, Entry> cache = new ConcurrentHashMap<InetAddress, Entry>();
+	private final ExecutorService exec;
+
+	private volatile HostResolver resolver;
+	private volatile Boolean enabled = true;
+	private volatile Long ttl = 3600000L, negttl = 300000L;
+
+	private static final class Entry {
+		final String name;
+		final Long expires;
+		final Boolean pending;
+
+		Entry(String n, Long e, Boolean p) {
+			name = n;
+			expires = e;
+			pending = p;
+		}
+	}
+
+	private HostNameCache() {
+		resolver = new HostResolver() {
+			@Override
+			public String resolve(InetAddress a) {
+				try {
+					String n = InetAddress.getByAddress(a.getAddress())
+							.getHostName();
+
+					return n.equals(a.getHostAddress()) ? null : n;
+				} catch (UnknownHostException e) {
+					return null;
+				}
+			}
+		};
+
+		exec = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "eftepd-dns");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized HostNameCache getInstance() {
+		if (instance == null) {
+			instance = new HostNameCache();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param r
+	 *            resolver to use from now on
+	 */
+	public void setResolver(HostResolver r) {
+		if (r == null) {
+			throw new IllegalArgumentException("resolver is null");
+		}
+
+		resolver = r;
+		cache.clear();
+	}
+
+	/**
+	 * @param e
+	 *            false to never look names up
+	 */
+	public void setEnabled(Boolean e) {
+		enabled = e;
+	}
+
+	/**
+	 * @param pos
+	 *            how long a found name is kept, ms
+	 * @param neg
+	 *            how long a failed lookup is kept, ms
+	 */
+	public void setTtls(Long pos, Long neg) {
+		if (pos < 0 || neg < 0) {
+			throw new IllegalArgumentException("TTL < 0");
+		}
+
+		ttl = pos;
+		negttl = neg;
+	}
+
+	/**
+	 * Starts a lookup if the name isn't cached
+	 *
+	 * @param a
+	 *            address; may be null
+	 */
+	public void prefetch(InetAddress a) {
+		lookup(a);
+	}
+
+	/**
+	 * @param a
+	 *            address; may be null
+	 * @return cached name or null if it's unknown, not found or being looked
+	 *         up for the first time
+	 */
+	public String lookup(final InetAddress a) {
+		if (a == null || !enabled) {
+			return null;
+		}
+
+		Entry e = cache.get(a);
+		Long now = System.currentTimeMillis();
+
+		if (e != null && (e.pending || e.expires > now)) {
+			return e.name;
+		}
+
+		final Entry pe = new Entry(e == null ? null : e.name, Long.MAX_VALUE,
+				true);
+
+		if (e == null ? cache.putIfAbsent(a, pe) == null : cache.replace(a, e,
+				pe)) {
+			try {
+				exec.execute(new Runnable() {
+					@Override
+					public void run() {
+						String n = null;
+						try {
+							n = resolver.resolve(a);
+						} finally {
+							resolved(a, n);
+						}
+					}
+				});
+			} catch (RejectedExecutionException ex) {
+				cache.remove(a, pe);
+			}
+		}
+
+		return pe.name;
+	}
+
+	/**
+	 * @param a
+	 *            address
+	 * @return cached name or the address in text form
+	 */
+	public String getName(InetAddress a) {
+		String n = lookup(a);
+
+		return n != null ? n : a.getHostAddress();
+	}
+
+	private void resolved(InetAddress a, String name) {
+		Long now = System.currentTimeMillis();
+
+		if (cache.size() >= MAXENTRIES) {
+			purge(now);
+		}
+
+		cache.put(a, new Entry(name, now + (name == null ? negttl : ttl),
+				false));
+	}
+
+	private void purge(Long now) {
+		Iterator<Entry> it = cache.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (!e.pending && e.expires <= now) {
+				it.remove();
+			}
+		}
+
+		it = cache.values().iterator();
+		while (cache.size() >= MAXENTRIES && it.hasNext()) {
+			if (!it.next().pending) {
+				it.remove();
+			}
+		}
+	}
+}
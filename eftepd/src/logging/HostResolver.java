@@ -0,0 +1,44 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+
+/**
+ *
+ */
+package logging;
+
+import java.net.InetAddress;
+
+/**
+ * Reverse name lookup used by {@link HostNameCache}; may be replaced by a
+ * local stand-in, e.g. in tests or when DNS should not be touched at all
+ *
+ * @author athantor
+ *
+ */
+public interface HostResolver {
+
+	/**
+	 * Looks the name of the address up; may block
+	 *
+	 * @param a
+	 *            address
+	 * @return host name or null if there is none
+	 */
+	public String resolve(InetAddress a);
+}
@@ -0,0 +1,115 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package logging;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import logging.Logger.Lvl;
+
+/**
+ * One log record. Everything needed from the socket is copied when the event
+ * is made, so it can be written out later, after the socket is gone.
+ *
+ * @author athantor
+ *
+ */
+public final class LogEvent {
+
+	public enum Kind {
+		CONNECTION, CONTROL, TRANSFER, MISC
+	}
+
+	private final Kind kind;
+	private final Lvl lvl;
+	private final Long time;
+	private final InetAddress addr;
+	private final Integer port;
+	private final String msg;
+
+	/**
+	 * @param k
+	 *            kind of record
+	 * @param csock
+	 *            client socket; may be null
+	 * @param msg
+	 *            message
+	 * @param l
+	 *            message level
+	 */
+	public LogEvent(Kind k, Socket csock, String msg, Lvl l) {
+		this.kind = k;
+		this.lvl = l;
+		this.time = System.currentTimeMillis();
+		this.msg = msg == null ? "" : msg;
+
+		if (csock != null) {
+			this.addr = csock.getInetAddress();
+			this.port = csock.getPort();
+		} else {
+			this.addr = null;
+			this.port = 0;
+		}
+	}
+
+	/**
+	 * @return the kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the level
+	 */
+	public Lvl getLvl() {
+		return lvl;
+	}
+
+	/**
+	 * @return time of the event in ms
+	 */
+	public Long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return client address; null for events without a client
+	 */
+	public InetAddress getAddr() {
+		return addr;
+	}
+
+	/**
+	 * @return client port
+	 */
+	public Integer getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the message
+	 */
+	public String getMsg() {
+		return msg;
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free ring of log events for many producers and a single
+ * consumer. Every slot carries a sequence number telling whether it's free
+ * for the producer of a given position or filled for the consumer.
+ *
+ * @author athantor
+ *
+ */
+final class LogRing {
+
+	private final AtomicReferenceArray<LogEvent> slots;
+	private final AtomicLongArray seqs;
+	private final Integer mask;
+	private final AtomicLong tail = new AtomicLong(0);
+	private volatile Long head = 0L;
+
+	/**
+	 * @param size
+	 *            capacity; rounded up to a power of two
+	 */
+	LogRing(Integer size) {
+		Integer cap = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+
+		slots = new AtomicReferenceArray<LogEvent>(cap);
+		seqs = new AtomicLongArray(cap);
+		mask = cap - 1;
+
+		for (int i = 0; i < cap; i++) {
+			seqs.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	Boolean offer(LogEvent e) {
+		long pos = tail.get();
+
+		while (true) {
+			int i = (int) pos & mask;
+			long dif = seqs.get(i) - pos;
+
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots.set(i, e);
+					seqs.lazySet(i, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (dif < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Consumer side only
+	 *
+	 * @return next event or null if there is none yet
+	 */
+	LogEvent poll() {
+		long h = head;
+		int i = (int) h & mask;
+
+		if (seqs.get(i) != h + 1) {
+			return null;
+		}
+
+		LogEvent e = slots.get(i);
+		slots.set(i, null);
+		seqs.lazySet(i, h + mask + 1);
+		head = h + 1;
+
+		return e;
+	}
+
+	/**
+	 * @return total number of events ever accepted
+	 */
+	Long published() {
+		return tail.get();
+	}
+
+	Boolean isEmpty() {
+		return head >= tail.get();
+	}
+
+	Integer capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package logging;
+
+import java.util.List;
+
+/**
+ * Something that can store log events in batches
+ *
+ * @author athantor
+ *
+ */
+public interface LogSink {
+
+	/**
+	 * Writes the events in the given order
+	 *
+	 * @param evs
+	 *            events
+	 */
+	public void write(List<LogEvent> evs);
+
+	/**
+	 * Makes sure everything written so far is stored
+	 */
+	public void saveLog();
+}
@@ -0,0 +1,323 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Append-only writer of the XHTML log. The file always ends with
+ * {@link #TAIL}; new rows are written over it and the tail is written again
+ * after them, so the document stays well-formed and nothing before the tail
+ * is ever rewritten.
+ * <p>
+ * The file is checked in full only when it's opened; after that
+ * {@link #isIntact()} just compares the file on the disk with what was
+ * written to it.
+ *
+ * @author athantor
+ *
+ */
+final class XHTMLLogWriter {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static final String TABLEID = "logtbl";
+
+	static final String HEAD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<?xml-stylesheet type=\"text/css\" href=\"log.css\"?>\n"
+			+ "<html xmlns=\"http://www.w3.org/1999/xhtml\">"
+			+ "<head><title>eftepd — log</title></head><body>"
+			+ "<h1>Log</h1><table id=\"" + TABLEID
+			+ "\" class=\"logtable\"><!--eftepd log-->\n";
+
+	static final String TAIL = "</table></body></html>\n";
+
+	private static final byte[] TAILB = TAIL.getBytes(UTF8);
+
+	private final File file;
+	private FileChannel ch = null;
+	private Long tailpos = 0L;
+	private Object fkey = null;
+
+	XHTMLLogWriter(File f) {
+		file = f;
+	}
+
+	/**
+	 * Opens the log; a file that isn't ours is moved aside and a new one is
+	 * started
+	 *
+	 * @throws IOException
+	 */
+	synchronized void open() throws IOException {
+		close();
+
+		if (file.exists() && file.length() > 0 && !isValid()
+				&& !(repairTail() && isValid())) {
+			rotate();
+		}
+
+		ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if (ch.size() == 0) {
+			writeAt(ByteBuffer.wrap((HEAD + TAIL).getBytes(UTF8)), 0L);
+			tailpos = (long) HEAD.getBytes(UTF8).length;
+		} else {
+			tailpos = ch.size() - TAILB.length;
+		}
+
+		fkey = Files.readAttributes(file.toPath(), BasicFileAttributes.class)
+				.fileKey();
+	}
+
+	/**
+	 * Cheap check done before writing: the file must still be the one that
+	 * was opened and nobody else may have written to it
+	 *
+	 * @return false if the log has to be reopened
+	 */
+	synchronized Boolean isIntact() {
+		if (ch == null) {
+			return false;
+		}
+
+		try {
+			BasicFileAttributes a = Files.readAttributes(file.toPath(),
+					BasicFileAttributes.class);
+
+			if (fkey != null && !fkey.equals(a.fileKey())) {
+				return false;
+			}
+
+			return a.size() == tailpos + TAILB.length;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Cuts off a row left half-written by a crash and puts the tail back
+	 *
+	 * @return true if the file looked like our log and was repaired; false
+	 *         if no whole row was found in its last {@code MAXSCAN} bytes
+	 */
+	private Boolean repairTail() {
+		final byte[] headb = HEAD.getBytes(UTF8);
+		final byte[] eor = "</tr>\n".getBytes(UTF8);
+		final Integer MAXSCAN = 1024 * 1024;
+
+		try {
+			FileChannel fc = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+			try {
+				ByteBuffer b = ByteBuffer.allocate(headb.length);
+				fc.read(b, 0L);
+				if (!ByteBuffer.wrap(headb).equals(b.flip())) {
+					return false;
+				}
+
+				Long from = Math.max(headb.length, fc.size() - MAXSCAN);
+				b = ByteBuffer.allocate((int) (fc.size() - from));
+				while (b.hasRemaining()) {
+					if (fc.read(b, from + b.position()) < 0) {
+						break;
+					}
+				}
+
+				byte[] a = b.array();
+				Long cut = null;
+
+				for (int i = b.position() - eor.length; i >= 0; i--) {
+					int j = 0;
+					while (j < eor.length && a[i + j] == eor[j]) {
+						j++;
+					}
+
+					if (j == eor.length) {
+						cut = from + i + eor.length;
+						break;
+					}
+				}
+
+				if (cut == null) {
+					/* no whole row near the end; keep it all for rotate() */
+					return false;
+				}
+
+				fc.truncate(cut);
+				ByteBuffer t = ByteBuffer.wrap(TAILB);
+				while (t.hasRemaining()) {
+					cut += fc.write(t, cut);
+				}
+
+				System.err.println("**> Log was not closed properly; repaired");
+
+				return true;
+			} finally {
+				fc.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks that the file is a well-formed log of ours ending with the tail
+	 *
+	 * @return true if rows can be appended to it
+	 */
+	private Boolean isValid() {
+		if (!file.exists() || file.length() < TAILB.length) {
+			return false;
+		}
+
+		final Boolean[] found = { false };
+
+		try {
+			SAXParserFactory spf = SAXParserFactory.newInstance();
+			spf.setNamespaceAware(false);
+			spf.setValidating(false);
+
+			spf.newSAXParser().parse(file, new DefaultHandler() {
+				@Override
+				public void startElement(String uri, String localName,
+						String qName, Attributes attributes) {
+					if (qName.compareTo("table") == 0
+							&& TABLEID.equals(attributes.getValue("id"))) {
+						found[0] = true;
+					}
+				}
+			});
+		} catch (SAXException e) {
+			return false;
+		} catch (ParserConfigurationException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+
+		return found[0] && endsWithTail();
+	}
+
+	private Boolean endsWithTail() {
+		try {
+			FileChannel fc = ch != null && ch.isOpen() ? ch : FileChannel
+					.open(file.toPath(), StandardOpenOption.READ);
+
+			try {
+				ByteBuffer b = ByteBuffer.allocate(TAILB.length);
+				Long pos = fc.size() - TAILB.length;
+
+				while (b.hasRemaining()) {
+					if (fc.read(b, pos + b.position()) < 0) {
+						return false;
+					}
+				}
+
+				return ByteBuffer.wrap(TAILB).equals(b.flip());
+			} finally {
+				if (fc != ch) {
+					fc.close();
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Moves the current file aside
+	 */
+	private void rotate() throws IOException {
+		File old = new File(file.getAbsolutePath() + "."
+				+ new SimpleDateFormat("yyyyMMddHHmmss").format(new Date())
+				+ ".old");
+
+		if (!file.renameTo(old)) {
+			throw new IOException("Can't move old log to "
+					+ old.getAbsolutePath());
+		}
+
+		System.err.println("**> Invalid log format; old log moved to "
+				+ old.getAbsolutePath());
+	}
+
+	/**
+	 * Appends rows before the tail
+	 *
+	 * @param rows
+	 *            serialized <code>&lt;tr&gt;</code> elements
+	 * @throws IOException
+	 */
+	synchronized void append(String rows) throws IOException {
+		if (ch == null) {
+			throw new IOException("Log is not open");
+		}
+
+		byte[] rb = rows.getBytes(UTF8);
+		ByteBuffer b = ByteBuffer.allocate(rb.length + TAILB.length);
+		b.put(rb).put(TAILB).flip();
+
+		writeAt(b, tailpos);
+		tailpos += rb.length;
+	}
+
+	private void writeAt(ByteBuffer b, Long pos) throws IOException {
+		while (b.hasRemaining()) {
+			pos += ch.write(b, pos);
+		}
+	}
+
+	/**
+	 * Forces written rows to the disk
+	 */
+	synchronized void sync() throws IOException {
+		if (ch != null) {
+			ch.force(false);
+		}
+	}
+
+	synchronized void close() throws IOException {
+		if (ch != null) {
+			ch.close();
+			ch = null;
+		}
+	}
+}
@@ -22,42 +22,38 @@
 package logging;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.w3c.dom.ProcessingInstruction;
-import org.xml.sax.SAXException;
+import logging.LogEvent.Kind;
 
 /**
+ * Logs to an XHTML file. Rows of all kinds go to one table in the order they
+ * were logged; the kind of a row is in its class (<code>connlog</code>,
+ * <code>controllog</code>, <code>xfrlog</code>, <code>misclog</code>) next to
+ * the level class. Client's host name is taken from {@link HostNameCache} and
+ * left empty if it isn't known yet.
+ * 
  * @author athantor
  * 
  */
-public class XHTMLLogger implements Logger {
+public class XHTMLLogger implements Logger, LogSink {
 
 	private static volatile XHTMLLogger instance = null;
-	private static volatile Document logdoc = null;
 	private static volatile File logfile = null;
-	private static volatile Node connel = null, ctlel = null, xfrel = null,
-			miscel = null;
+	private static volatile XHTMLLogWriter writer = null;
+
+	private static final String CONNCLS = "connlog", CTLCLS = "controllog",
+			XFRCLS = "xfrlog", MISCCLS = "misclog";
 
 	/**
-	 * @throws ParserConfigurationException
-	 * @throws IOException
-	 * @throws SAXException
 	 * @throws ParserConfigurationException
 	 * @throws IOException
 	 * 
@@ -68,8 +64,8 @@ public class XHTMLLogger implements Logger {
 					"Can't create instance b'coz log file is not set");
 		}
 
-		checkLogfile();
-		saveLog();
+		writer = new XHTMLLogWriter(logfile);
+		writer.open();
 	}
 
 	public static void setFile(File f) {
@@ -96,193 +92,13 @@ public class XHTMLLogger implements Logger {
 	}
 
 	/**
-	 * @throws IOException
-	 * @throws IOException
-	 * @throws ParserConfigurationException
-	 * @throws SAXException
-	 * @throws ParserConfigurationException
+	 * Reopens the log if it's gone or somebody has messed with it
 	 * 
-	 */
-	private static synchronized void checkLogfile() throws IOException,
-			ParserConfigurationException {
-		if (!logfile.exists()) {
-			logfile.createNewFile();
-			initDoc();
-		} else {
-			try {
-				parseOldLog();
-			} catch (SAXException e) {
-				initDoc();
-			}
-		}
-	}
-
-	/**
-	 * @throws ParserConfigurationException
-	 * @throws ParserConfigurationException
-	 * 
-	 */
-	private static synchronized void initDoc()
-			throws ParserConfigurationException {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-
-		dbf.setNamespaceAware(false);
-		dbf.setIgnoringComments(false);
-		dbf.setValidating(false);
-		dbf.setIgnoringElementContentWhitespace(false);
-		dbf.setCoalescing(false);
-
-		logdoc = dbf.newDocumentBuilder().newDocument();
-
-		ProcessingInstruction pi = logdoc.createProcessingInstruction(
-				"xml-stylesheet", "type=\"text/css\" href=\"log.css\"");
-
-		logdoc.appendChild(pi);
-
-		Element html = logdoc.createElementNS("http://www.w3.org/1999/xhtml",
-				"html");
-		Element head = logdoc.createElement("head");
-		Element title = logdoc.createElement("title");
-		Element body = logdoc.createElement("body");
-
-		title.setTextContent("eftepd — log");
-
-		head.appendChild(title);
-
-		html.appendChild(head);
-		html.appendChild(body);
-
-		logdoc.appendChild(html);
-
-		initTree();
-
-	}
-
-	/**
-	 * @throws ParserConfigurationException
 	 * @throws IOException
-	 * @throws SAXException
-	 * 
 	 */
-	private static synchronized void parseOldLog()
-			throws ParserConfigurationException, SAXException, IOException {
-		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-
-		dbf.setNamespaceAware(false);
-		dbf.setIgnoringComments(false);
-		dbf.setValidating(false);
-		dbf.setIgnoringElementContentWhitespace(false);
-		dbf.setCoalescing(false);
-
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		logdoc = db.parse(logfile);
-
-		if (logdoc.getElementsByTagName("body").getLength() != 1) {
-			throw new SAXException(
-					String
-							.format(
-									"There is/are %s '<body>' elements in doc; should be just one",
-									logdoc.getElementsByTagName("body")
-											.getLength()));
-		}
-
-		NodeList nl = logdoc.getElementsByTagName("body").item(0)
-				.getChildNodes();
-		for (int i = 0; i < nl.getLength(); i++) {
-			Node n = nl.item(i);
-
-			if (n.getNodeType() == Node.ELEMENT_NODE
-					&& n.getNodeName().compareTo("table") == 0
-					&& n.getAttributes().getNamedItem("id") != null) {
-				String id = n.getAttributes().getNamedItem("id")
-						.getTextContent();
-
-				if (id.compareTo("connlogtbl") == 0) {
-					connel = n;
-				} else if (id.compareTo("controllogtbl") == 0) {
-					ctlel = n;
-				} else if (id.compareTo("xfrlogtbl") == 0) {
-					xfrel = n;
-				} else if (id.compareTo("misclogtbl") == 0) {
-					miscel = n;
-				}
-
-			}
-		}
-
-		if (connel == null || ctlel == null || xfrel == null || miscel == null) {
-			System.err
-					.println("**> Invalid log format; required tables not found; creating new ones");
-
-			initTree();
-		}
-
-	}
-
-	/**
-	 * 
-	 */
-	private static synchronized void initTree() {
-
-		Node body = logdoc.getElementsByTagName("body").item(0);
-		Element titel;
-
-		if (connel == null) {
-
-			Element ce = logdoc.createElement("table");
-			ce.setAttribute("id", "connlogtbl");
-			ce.setAttribute("class", "logtable");
-			ce.appendChild(logdoc.createComment("connections log"));
-
-			titel = logdoc.createElement("h1");
-			titel.setTextContent("Connections");
-			body.appendChild(titel);
-
-			body.appendChild(ce);
-			connel = ce;
-		}
-
-		if (ctlel == null) {
-			Element te = logdoc.createElement("table");
-			te.setAttribute("id", "controllogtbl");
-			te.setAttribute("class", "logtable");
-			te.appendChild(logdoc.createComment("control connection log"));
-
-			titel = logdoc.createElement("h1");
-			titel.setTextContent("Control");
-			body.appendChild(titel);
-
-			body.appendChild(te);
-			ctlel = te;
-		}
-
-		if (xfrel == null) {
-			Element xe = logdoc.createElement("table");
-			xe.setAttribute("id", "xfrlogtbl");
-			xe.setAttribute("class", "logtable");
-			xe.appendChild(logdoc.createComment("transfers log"));
-
-			titel = logdoc.createElement("h1");
-			titel.setTextContent("Transfer");
-			body.appendChild(titel);
-
-			body.appendChild(xe);
-			xfrel = xe;
-		}
-
-		if (miscel == null) {
-			Element me = logdoc.createElement("table");
-			me.setAttribute("id", "misclogtbl");
-			me.setAttribute("class", "logtable");
-			me.appendChild(logdoc.createComment("misc log"));
-
-			titel = logdoc.createElement("h1");
-			titel.setTextContent("Misc");
-			body.appendChild(titel);
-
-			body.appendChild(me);
-			miscel = me;
-
+	private static synchronized void checkLogfile() throws IOException {
+		if (!writer.isIntact()) {
+			writer.open();
 		}
 	}
 
@@ -298,16 +114,8 @@ public class XHTMLLogger implements Logger {
 			return;
 		}
 
-		try {
-			checkLogfile();
-		} catch (Exception e) {
-			System.err.println("**> Can't reread log: "
-					+ e.getLocalizedMessage());
-		}
-
-		addMsg(connel, l, new Date().toString(), msg, csock.getInetAddress()
-				.getHostName(), csock.getInetAddress().getHostAddress(), String
-				.valueOf(csock.getPort()));
+		write(Collections.singletonList(new LogEvent(Kind.CONNECTION, csock,
+				msg, l)));
 
 	}
 
@@ -322,16 +130,8 @@ public class XHTMLLogger implements Logger {
 			return;
 		}
 
-		try {
-			checkLogfile();
-		} catch (Exception e) {
-			System.err.println("**> Can't reread log: "
-					+ e.getLocalizedMessage());
-		}
-
-		addMsg(ctlel, l, new Date().toString(), csock.getInetAddress()
-				.getHostName(), csock.getInetAddress().getHostAddress(), String
-				.valueOf(csock.getPort()), msg);
+		write(Collections.singletonList(new LogEvent(Kind.CONTROL, csock, msg,
+				l)));
 
 	}
 
@@ -346,79 +146,143 @@ public class XHTMLLogger implements Logger {
 			return;
 		}
 
+		write(Collections.singletonList(new LogEvent(Kind.TRANSFER, csock,
+				msg, l)));
+
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see logging.LogSink#write(java.util.List)
+	 */
+	@Override
+	public synchronized void write(List<LogEvent> evs) {
 		try {
 			checkLogfile();
 		} catch (Exception e) {
 			System.err.println("**> Can't reread log: "
 					+ e.getLocalizedMessage());
 		}
-		
-		addMsg(xfrel, l, new Date().toString(), csock.getInetAddress()
-				.getHostName(), csock.getInetAddress().getHostAddress(), String
-				.valueOf(csock.getPort()), msg);
 
+		StringBuilder rows = new StringBuilder(160 * evs.size());
+
+		for (LogEvent e : evs) {
+			String date = new Date(e.getTime()).toString();
+			InetAddress a = e.getAddr();
+			String host = HostNameCache.getInstance().lookup(a);
+			if (host == null) {
+				host = "";
+			}
+			String ip = a == null ? "" : a.getHostAddress();
+			String port = String.valueOf(e.getPort());
+
+			switch (e.getKind()) {
+			case CONNECTION:
+				addRow(rows, CONNCLS, e.getLvl(), date, e.getMsg(), host, ip,
+						port);
+				break;
+			case CONTROL:
+				addRow(rows, CTLCLS, e.getLvl(), date, host, ip, port, e
+						.getMsg());
+				break;
+			case TRANSFER:
+				addRow(rows, XFRCLS, e.getLvl(), date, host, ip, port, e
+						.getMsg());
+				break;
+			case MISC:
+			default:
+				addRow(rows, MISCCLS, e.getLvl(), date, e.getMsg());
+				break;
+			}
+		}
+
+		try {
+			writer.append(rows.toString());
+		} catch (IOException e) {
+			System.err
+					.println("**> Can't save log: " + e.getLocalizedMessage());
+		}
 	}
 
 	/**
-	 * @param tbl
-	 *            Table to write to
+	 * @param tr
+	 *            where to put the row
+	 * @param kind
+	 *            class of the row's kind
 	 * @param cells
 	 *            cells to write
-	 * @throws IOException
-	 * @throws SAXException
-	 * @throws ParserConfigurationException
 	 */
-	private synchronized void addMsg(Node tbl, Lvl l, String... cells) {
+	private static void addRow(StringBuilder tr, String kind, Lvl l,
+			String... cells) {
 
-		Element tr = logdoc.createElement("tr");
+		tr.append("<tr class=\"").append(kind);
 
 		switch (l) {
 		case CRITICAL:
-			tr.setAttribute("class", "loglvlcritical");
+			tr.append(" loglvlcritical");
 			break;
 		case ERROR:
-			tr.setAttribute("class", "loglvlerror");
+			tr.append(" loglvlerror");
 			break;
 		case WARNING:
-			tr.setAttribute("class", "loglvlwarning");
+			tr.append(" loglvlwarning");
 			break;
 		case NOTICE:
-			tr.setAttribute("class", "loglvlnotice");
+			tr.append(" loglvlnotice");
 			break;
 		case NORMAL:
 		default:
-			// tr.setAttribute("class", "log");
 			break;
 		}
 
-		tr.setAttribute("id", "id-" + UUID.randomUUID().toString());
+		tr.append("\" id=\"id-").append(UUID.randomUUID().toString()).append(
+				"\">");
 
 		for (String s : cells) {
-			Element ttd = logdoc.createElement("td");
-			// ttd.setAttribute("id", "id-" + UUID.randomUUID().toString());
-			ttd.setTextContent(s.replaceAll("&", "&amp;").replaceAll("<",
-					"&lt;").replaceAll(">", "&gt").replaceAll("\"", "&quot;")
-					.replaceAll("\\p{Cntrl}", "\ufffd"));
-
-			tr.appendChild(ttd);
+			tr.append("<td>");
+			escape(tr, s);
+			tr.append("</td>");
 		}
 
-		tbl.appendChild(tr);
+		tr.append("</tr>\n");
 
-		saveLog();
+	}
+
+	private static void escape(StringBuilder sb, String s) {
+		if (s == null) {
+			return;
+		}
 
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				sb.append("&quot;");
+				break;
+			default:
+				if (Character.isISOControl(c)) {
+					sb.append('\ufffd');
+				} else {
+					sb.append(c);
+				}
+			}
+		}
 	}
 
 	public synchronized void saveLog() {
 		try {
-
-			FileWriter fw = new FileWriter(logfile, false);
-
-			TransformerFactory.newInstance().newTransformer().transform(
-					new DOMSource(logdoc), new StreamResult(fw));
-
-			fw.flush();
-			fw.close();
+			writer.sync();
 		} catch (Exception e) {
 			System.err
 					.println("**> Can't save log: " + e.getLocalizedMessage());
@@ -438,7 +302,7 @@ public class XHTMLLogger implements Logger {
 			msg = "";
 		}
 
-		addMsg(miscel, l, new Date().toString(), msg);
+		write(Collections.singletonList(new LogEvent(Kind.MISC, csock, msg, l)));
 	}
 
 }
@@ -22,15 +22,14 @@
 package server;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
@@ -38,14 +37,25 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Locale;
-import java.util.concurrent.Semaphore;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logging.HostNameCache;
 import logging.Logger;
 import logging.Logger.Lvl;
-import server.DataSocketCreator.Status;
 import settings.Account;
 import settings.SettingsManager;
 
@@ -55,12 +65,13 @@ import settings.SettingsManager;
  */
 public final class ClientConnection implements Runnable {
 
-	private Socket csock, dsock = null;
+	private Socket csock;
 	private DataSocketCreator dsc;
+	private PassiveAcceptor pasv;
 	private Logger log;
 	private Boolean kill = false;
-	private BufferedReader read;
-	private PrintWriter write;
+	private LineFramer read;
+	private ReplyWriter write;
 	private SettingsManager smngr;
 	private File wdir = null;
 	private Type currt;
@@ -70,18 +81,454 @@ public final class ClientConnection implements Runnable {
 	private Account accnt = null;
 
 	private Integer idlemstime = 900000;
+	private Integer maxline = 8192;
 	private Long st_transf = 0L, st_conns = 0L;
+	private volatile ByteBuffer xfrbuf = null;
+	private ByteBuffer cvtbuf = null;
+	private volatile Transfer xfr = null;
+	/* REST marker for the next RETR, STOR or APPE */
+	private Long restpos = 0L;
+
+	private static final Integer XFRBLKSIZE = 256 * 1024;
+	/* sendfile step, so STAT has something to report */
+	private static final Long ZCCHUNK = 4L * 1024 * 1024;
+	private static final String LINESEP = System
+			.getProperty("line.separator");
+
+	private static final byte[] NOOPMSG = ReplyWriter
+			.encode("200 Yay, you're not dead! I'm good too, BTW.\r\n");
+	private static final byte[] NOTLOGGEDMSG = ReplyWriter
+			.encode("530 I don't talk with strangers. "
+					+ "Tell me who you are first!\r\n");
+	private static final byte[] STRUMSG = ReplyWriter
+			.encode("200 STRUCTURE is always FILE\r\n");
+	private static final byte[] MODEMSG = ReplyWriter
+			.encode("200 MODE is always STREAM\r\n");
+	private static final byte[] LSDONEMSG = ReplyWriter
+			.encode("226 Listing done\r\n");
+	private static final byte[] HELLOENDMSG = ReplyWriter
+			.encode("220 Please login NAO!\r\n");
+	private static final byte[] SYSTMSG = ReplyWriter
+			.encode("215 UNIX type: L8 (" + System.getProperty("os.name")
+					+ "; " + System.getProperty("java.vendor") + " Java)\r\n");
+	private static final byte[] FEATMSG = ReplyWriter
+			.encode("211-Features:\r\n" + " EPSV\r\n" + " MDTM\r\n"
+					+ " MLST " + DirListing.MLSTFACTS + "\r\n" + " PASV\r\n"
+					+ " REST STREAM\r\n" + " SIZE\r\n" + "211 End\r\n");
+
+	private static final ExecutorService XFRPOOL = Executors
+			.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger cnt = new AtomicInteger(0);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "eftepd-xfr-"
+							+ cnt.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	/* pre-encoded HelloFile lines, reread when the file changes */
+	private static byte[] hellofile = null;
+	private static String hellokey = null;
 
 	private enum Type {
 		ASCII, IMAGE
 	};
 
-	Semaphore logsem;
+	/**
+	 * RETR or STOR running on a thread of its own, so the control connection
+	 * is served meanwhile. ABOR closes the data connection, or stops the
+	 * wait for it; the transfer then ends with 426 instead of its own final
+	 * reply.
+	 */
+	private final class Transfer implements Runnable {
+		private final String what;
+		private final Long size;
+		private final Runnable body;
+		private final CompletableFuture<Void> end = new CompletableFuture<Void>();
+		private volatile Long done = 0L;
+
+		private Thread thr = null;
+		private DataSocketCreator pend = null;
+		private Socket sock = null;
+		private Boolean running = true, aborted = false, replied = false;
+
+		/**
+		 * @param sz
+		 *            bytes to go, -1 if not known
+		 */
+		Transfer(String w, Long sz, Runnable b) {
+			what = w;
+			size = sz;
+			body = b;
+		}
+
+		@Override
+		public void run() {
+			Boolean go;
+			synchronized (this) {
+				thr = Thread.currentThread();
+				go = !aborted;
+			}
+
+			try {
+				if (go) {
+					body.run();
+				}
+			} catch (RuntimeException e) {
+				log.addMiscMsg(null, "Transfer failed: " + e, Lvl.ERROR);
+				reply("451 OMG, transfer died: " + e.getMessage() + "\r\n");
+			} finally {
+				synchronized (this) {
+					thr = null;
+					running = false;
+
+					if (!replied) {
+						detach();
+						write.print(aborted ? "426 Transfer aborted\r\n"
+								: "451 Transfer ended without a word\r\n");
+						write.flushNow();
+					}
+				}
+
+				end.complete(null);
+			}
+		}
+
+		/**
+		 * @return false if it has already ended or given its final reply
+		 */
+		synchronized Boolean abort() {
+			if (!running || replied) {
+				return false;
+			}
+
+			aborted = true;
+
+			if (pend != null) {
+				pend.abort();
+			}
+			if (sock != null) {
+				/* a close alone doesn't wake a thread stuck in sendfile */
+				try {
+					sock.shutdownInput();
+				} catch (IOException e) {
+				}
+				try {
+					sock.shutdownOutput();
+				} catch (IOException e) {
+				}
+				try {
+					sock.close();
+				} catch (IOException e) {
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Waits for the client on d, unless aborted
+		 */
+		synchronized Boolean attach(DataSocketCreator d) {
+			if (aborted) {
+				d.abort();
+				return false;
+			}
+
+			pend = d;
+			return true;
+		}
+
+		/**
+		 * Uses s as the data connection, unless aborted
+		 */
+		synchronized Boolean attach(Socket s) {
+			pend = null;
+
+			if (aborted) {
+				try {
+					s.close();
+				} catch (IOException e) {
+				}
+				return false;
+			}
+
+			sock = s;
+			return true;
+		}
+
+		/**
+		 * Sends the final reply, unless aborted; the session is free for
+		 * the next transfer from now on
+		 */
+		synchronized void reply(String msg) {
+			if (aborted || replied) {
+				return;
+			}
+
+			replied = true;
+			detach();
+
+			write.print(msg);
+			write.flushNow();
+		}
+
+		/**
+		 * Waits until the transfer has ended
+		 */
+		void await() {
+			try {
+				end.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+			}
+		}
+
+		private void detach() {
+			if (xfr == this) {
+				xfr = null;
+			}
+		}
+	}
+
+	private static final CommandRegistry<ClientConnection> CMDS = new CommandRegistry<ClientConnection>();
+
+	static {
+		CMDS.add("USER", false, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doUserCmd(line);
+					}
+				});
+		CMDS.add("PASS", false, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doPassCmd(line);
+					}
+				});
+		CMDS.add("NOOP", false, null, false, true,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doNoopCmd();
+					}
+				});
+		CMDS.add("QUIT", false, null, false, true,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doQuitCmd();
+					}
+				});
+		CMDS.add("ACCT", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doAcctCmd(line);
+					}
+				});
+		CMDS.add("CWD", true, 1, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doCwdCmd(line);
+					}
+				});
+		CMDS.add("CDUP", true, 0, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doCdupCmd();
+					}
+				});
+		CMDS.add("LIST", true, null, true, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doListCmd(line);
+					}
+				});
+		CMDS.add("PASV", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doPasvCmd();
+					}
+				});
+		CMDS.add("EPSV", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doEpsvCmd(line);
+					}
+				});
+		CMDS.add("PWD", true, 0, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doPwdCmd();
+					}
+				});
+		CMDS.add("TYPE", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doTypeCmd(line);
+					}
+				});
+		CMDS.add("SYST", false, 0, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doSystCmd();
+					}
+				});
+		CMDS.add("MODE", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doModeCmd();
+					}
+				});
+		CMDS.add("STRU", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doStruCmd();
+					}
+				});
+		CMDS.add("PORT", true, 1, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doPortCmd(line);
+					}
+				});
+		CMDS.add("RETR", true, 1, true, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doRetrCmd(line);
+					}
+				});
+		CMDS.add("STOR", true, 1, true, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doStorCmd(line);
+					}
+				});
+		CMDS.add("MLSD", true, null, true, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doMlsdCmd(line);
+					}
+				});
+		CMDS.add("MLST", true, null, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doMlstCmd(line);
+					}
+				});
+		CMDS.add("SIZE", true, 1, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doSizeCmd(line);
+					}
+				});
+		CMDS.add("MDTM", true, 1, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doMdtmCmd(line);
+					}
+				});
+		CMDS.add("FEAT", false, 0, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doFeatCmd();
+					}
+				});
+		CMDS.add("SITE", true, null, true, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doSiteCmd(line);
+					}
+				});
+		CMDS.add("ABOR", false, 0, false, true,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doAborCmd();
+					}
+				});
+		CMDS.add("STAT", true, null, false, true,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doStatCmd(line);
+					}
+				});
+		CMDS.add("REST", true, 1, false, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doRestCmd(line);
+					}
+				});
+		CMDS.add("APPE", true, 1, true, false,
+				new CommandRegistry.Handler<ClientConnection>() {
+					@Override
+					public void handle(ClientConnection cc,
+							LineFramer.Line line) {
+						cc.doAppeCmd(line);
+					}
+				});
+	}
 
 	/**
 	 * 
 	 */
-	public ClientConnection(Socket s, Logger l, SettingsManager sm) {
+	public ClientConnection(Socket s, Logger l, SettingsManager sm,
+			PassiveAcceptor pa) {
 		if (s == null) {
 			throw new IllegalArgumentException("socket is null");
 		}
@@ -89,11 +536,9 @@ public final class ClientConnection implements Runnable {
 		csock = s;
 		log = l;
 		smngr = sm;
-		logsem = new Semaphore(1, true);
+		pasv = pa;
 
-		logsem.acquireUninterruptibly();
 		log.addConnectionMsg(csock, "connected", Lvl.NORMAL);
-		logsem.release();
 
 		idlemstime = 900000;
 
@@ -106,23 +551,37 @@ public final class ClientConnection implements Runnable {
 					throw new IllegalArgumentException("ClientIdleTimeout <= 0");
 				}
 			} catch (Exception e) {
-				logsem.acquireUninterruptibly();
 				log.addMiscMsg(null, "Invalid setting „ClientTimeout”: "
 						+ e.getLocalizedMessage(), Lvl.ERROR);
-				logsem.release();
 
 				idlemstime = 900000;
 			}
 
 		}
 
+		if (smngr.getServerSett().hasProperty("MaxCommandLength")) {
+			try {
+				maxline = Integer.parseInt(smngr.getServerSett().getProperty(
+						"MaxCommandLength").trim());
+				if (maxline <= 0) {
+					throw new IllegalArgumentException("MaxCommandLength <= 0");
+				}
+			} catch (Exception e) {
+				log.addMiscMsg(null, "Invalid setting „MaxCommandLength”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+
+				maxline = 8192;
+			}
+		}
+
+		read = new LineFramer(maxline);
+
 		try {
 			csock.setSoTimeout(idlemstime);
+			csock.setTcpNoDelay(true);
 		} catch (SocketException e) {
-			logsem.acquireUninterruptibly();
-			log.addMiscMsg(null, "Failed to set socket timeout”: "
+			log.addMiscMsg(null, "Failed to set socket options: "
 					+ e.getLocalizedMessage(), Lvl.ERROR);
-			logsem.release();
 		}
 
 	}
@@ -135,67 +594,46 @@ public final class ClientConnection implements Runnable {
 	@Override
 	public void run() {
 
+		InputStream is;
+
 		try {
-			read = new BufferedReader(new InputStreamReader(csock
-					.getInputStream()));
-			write = new PrintWriter(new OutputStreamWriter(csock
-					.getOutputStream()));
+			is = csock.getInputStream();
+			hello(csock.getOutputStream());
 		} catch (IOException e) {
-			logsem.acquireUninterruptibly();
-
 			log.addConnectionMsg(csock, "disconnected - error", Lvl.ERROR);
 			log.addMiscMsg(null, String.format("Failed to get i/o with %s: %s",
-					csock.getInetAddress().getHostName(), e
+					HostNameCache.getInstance().getName(
+							csock.getInetAddress()), e
 							.getLocalizedMessage()), Logger.Lvl.ERROR);
 
-			logsem.release();
-
 			return;
 		}
 
-		currt = Type.ASCII;
-		printHelloMsg();
-
-		String cmdline = "";
+		LineFramer.Line cmdline;
 
 		try {
-			while (!kill && ((cmdline = read.readLine()) != null)) {
-				parseCommand(cmdline);
-			}
-
-		} catch (SocketTimeoutException e) {
-
-			logsem.acquireUninterruptibly();
-			log.addConnectionMsg(csock, "connection timeout", Lvl.NOTICE);
-			logsem.release();
+			while (!kill) {
+				try {
+					cmdline = read.readLine(is);
+				} catch (SocketTimeoutException e) {
+					if (isTransferring()) {
+						continue;
+					}
 
-			write.print("421 Goodbye sleepyhead! (timeout; "
-					+ (idlemstime / 1000) + "s)\r\n");
-			write.flush();
+					throw e;
+				}
 
-			try {
-				csock.close();
-			} catch (IOException e1) {
-				logsem.acquireUninterruptibly();
-				log.addMiscMsg(null, "error closing socket: "
-						+ e1.getLocalizedMessage(), Lvl.WARNING);
-				logsem.release();
-			}
+				if (cmdline == null) {
+					break;
+				}
 
-			if (dsock == null) {
-				return;
+				parseCommand(cmdline);
 			}
 
+		} catch (SocketTimeoutException e) {
+			timedOut();
 		} catch (IOException e) {
-			logsem.acquireUninterruptibly();
-			log.addConnectionMsg(csock, "connection lost: "
-					+ e.getLocalizedMessage(), Lvl.NOTICE);
-			logsem.release();
-
-			if (dsock == null) {
-				return;
-			}
-
+			connectionLost(e);
 		} /*
 		 * catch (Exception e) { write.print(
 		 * "451-OMG, I suck! Internal server error! Blargh! I AM DEAD!X_X\r\n451 "
@@ -205,107 +643,258 @@ public final class ClientConnection implements Runnable {
 		 * return; }
 		 */
 
-		logsem.acquireUninterruptibly();
+		disconnect();
+
+	}
+
+	/**
+	 * Sets up the reply stream and greets the client
+	 * 
+	 * @param os
+	 *            control connection output
+	 */
+	void hello(OutputStream os) {
+		write = new ReplyWriter(os);
+
+		currt = Type.ASCII;
+		printHelloMsg();
+	}
+
+	/**
+	 * Runs one command line
+	 * 
+	 * @param cmdline
+	 *            command line from {@link #getFramer()}
+	 * @return false if the session should end
+	 */
+	Boolean process(LineFramer.Line cmdline) {
+		parseCommand(cmdline);
+
+		return !kill;
+	}
+
+	/**
+	 * @return true while a RETR or STOR is running; the session isn't idle
+	 *         then, however quiet the client is
+	 */
+	Boolean isTransferring() {
+		return xfr != null;
+	}
+
+	/**
+	 * @return where the session's input is cut into lines
+	 */
+	LineFramer getFramer() {
+		return read;
+	}
+
+	/**
+	 * Says goodbye to the idle client; closing the connection is up to the
+	 * caller
+	 */
+	void timedOut() {
+		log.addConnectionMsg(csock, "connection timeout", Lvl.NOTICE);
+
+		write.print("421 Goodbye sleepyhead! (timeout; "
+				+ (idlemstime / 1000) + "s)\r\n");
+		write.flush();
+	}
+
+	/**
+	 * @param e
+	 *            the cause; may be null if the client just went away
+	 */
+	void connectionLost(IOException e) {
+		log.addConnectionMsg(csock, "connection lost"
+				+ (e == null ? "" : ": " + e.getLocalizedMessage()),
+				Lvl.NOTICE);
+	}
+
+	/**
+	 * Logs the regular end of session and closes the control connection
+	 */
+	void disconnect() {
 		log.addConnectionMsg(csock, "disconnect", Lvl.NORMAL);
-		logsem.release();
+
+		dropTransfer();
 
 		try {
 			csock.close();
 		} catch (IOException e) {
-			logsem.acquireUninterruptibly();
 			log.addConnectionMsg(csock, "disconnect failed: "
 					+ e.getLocalizedMessage(), Lvl.ERROR);
-			logsem.release();
 
 			csock = null;
 		}
+	}
+
+	/**
+	 * Aborts the running transfer and gives back the data connection set up
+	 * for the next one; needed however the session ends
+	 */
+	void dropTransfer() {
+		Transfer t = xfr;
+		if (t != null) {
+			t.abort();
+		}
+
+		if (dsc != null) {
+			dsc.cancel();
+			dsc = null;
+		}
+	}
 
-		if (dsock == null) {
+	/**
+	 * @return idle timeout of control connection in ms
+	 */
+	Integer getIdleTimeout() {
+		return idlemstime;
+	}
+
+	/**
+	 * Runs a command; while more commands are already waiting in the
+	 * input, replies are only collected and sent together after the last
+	 * one
+	 * 
+	 * @param line
+	 */
+	private void parseCommand(LineFramer.Line line) {
+		if (line == null) {
 			return;
 		}
 
+		write.setHold(read.hasLine());
+
+		try {
+			runCommand(line);
+		} finally {
+			if (kill || !read.hasLine()) {
+				write.setHold(false);
+				write.flush();
+			}
+		}
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void parseCommand(String readLine) {
-		if (readLine == null) {
+	private void runCommand(LineFramer.Line line) {
+
+		if (line.isTooLong()) {
+			log.addCtlMsg(csock, "Got command line over " + maxline
+					+ " bytes", Lvl.NOTICE);
+
+			write.print("500 Command line too long\r\n");
+			write.flush();
 			return;
 		}
 
-		if (readLine.toUpperCase().startsWith("USER")) {
-			doUserCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("PASS")) {
-			doPassCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("NOOP")) {
-			doNoopCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("QUIT")) {
-			doQuitCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("ACCT")) {
-			doAcctCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("CWD")) {
-			doCwdCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("CDUP")) {
-			doCdupCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("LIST")) {
-			doListCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("PASV")) {
-			doPasvCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("EPSV")) {
-			doEpsvCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("PWD")) {
-			doPwdCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("TYPE")) {
-			doTypeCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("SYST")) {
-			doSystCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("MODE")) {
-			doModeCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("STRU")) {
-			doStruCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("PORT")) {
-			doPortCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("RETR")) {
-			doRetrCmd(readLine);
-		} else if (readLine.toUpperCase().startsWith("STOR")) {
-			doStorCmd(readLine);
-		} else {
+		CommandRegistry.Command<ClientConnection> c = CMDS.lookup(line);
+
+		if (c == null) {
+			String readLine = line.toString();
+
 			write.print("500 Waddya mean by '" + readLine + "'?\r\n");
 			write.flush();
 
-			logsem.acquireUninterruptibly();
 			log
 					.addCtlMsg(csock, "Got unknown command: " + readLine,
 							Lvl.NORMAL);
-			logsem.release();
+			return;
 		}
-	}
 
-	private void doStorCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'STOR' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
+		if (c.needsLogin() && accnt == null) {
+			log.addCtlMsg(csock, "Got '" + c.getVerb() + "' before login",
+					Lvl.NORMAL);
 
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
+			c.reject();
+			if (c.usesData()) {
+				dropDataSocket();
+			}
+			notLoggedInErrMsg();
+			return;
+		}
+
+		if (xfr != null && !c.runsDuringTransfer()) {
+			log.addCtlMsg(csock, "Got '" + c.getVerb()
+					+ "' during transfer", Lvl.NORMAL);
+
+			c.reject();
+			write.print("503 Transfer in progress; wait for it or ABOR it\r\n");
+			write.flush();
 			return;
 		}
 
-		if (!chechAreCmdArgsCntOk(readLine, 1)) {
+		if (c.getArgs() != null
+				&& !chechAreCmdArgsCntOk(line, c.getArgs())) {
+			c.reject();
+			if (c.usesData()) {
+				dropDataSocket();
+			}
 			return;
 		}
 
-		if (wdir == null) {
+		if (accnt != null && wdir == null) {
 			wdir = new File(accnt.getHomeDir().getAbsolutePath());
 		}
 
-		String[] cmd = readLine.split(" ", 2);
-		File f = new File(cmd[1]);
+		if (c.usesData()) {
+			/* the client may be waiting for a PASV reply to connect */
+			write.setHold(false);
+			write.flush();
+		}
+
+		c.run(this, line);
+	}
+
+	private void doStorCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'STOR' cmd: " + arg, Lvl.NORMAL);
+
+		storeCmd(arg, false);
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doAppeCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'APPE' cmd: " + arg, Lvl.NORMAL);
+
+		storeCmd(arg, true);
+	}
+
+	/**
+	 * STOR, or APPE if append; either starts at the REST marker if there's
+	 * one, and the file is cut there
+	 */
+	private void storeCmd(String path, Boolean append) {
+		Long from = takeRestart();
+
+		if (from == null) {
+			dropDataSocket();
+			return;
+		}
+
+		File f = new File(path);
 
 		if (!f.isAbsolute()) {
-			f = new File(wdir, cmd[1]);
+			f = new File(wdir, path);
+		}
+
+		if (from > 0 && f.length() < from) {
+			dropDataSocket();
+
+			write.print("554 Restart marker " + from + " past end of file ("
+					+ f.length() + "B)\r\n");
+			write.flush();
+			return;
 		}
+
+		if (append && from == 0) {
+			from = f.length();
+		}
+
 		if (!f.exists()) {
 			try {
 				f.createNewFile();
@@ -322,41 +911,64 @@ public final class ClientConnection implements Runnable {
 					+ "'\r\n");
 			write.flush();
 			return;
+		} else if (from > 0) {
+			write.print("150 Give it to me baby, from byte " + from + "!\r\n");
+			write.flush();
 		} else {
 			write.print("150 Give it to me baby!\r\n");
 			write.flush();
 		}
 
+		final File ff = f;
+		final Long off = from;
+		startTransfer((append ? "APPE " : "STOR ") + f.getAbsolutePath(),
+				-1L, new Runnable() {
+					@Override
+					public void run() {
+						store(ff, off);
+					}
+				});
+	}
+
+	/**
+	 * Receives f over the data connection; run as the session's transfer
+	 * 
+	 * @param from
+	 *            where to start writing; f is cut there first
+	 */
+	private void store(File f, Long from) {
 		Socket s = getDataSocket();
 
 		if (s == null) {
-			write.print("425 Can't open socket\r\n");
-			write.flush();
 			return;
 		}
 
 		Long start = System.currentTimeMillis();
 
-		final Integer WRBLKSIZE = 1024;
-
-		FileOutputStream fos;
+		FileChannel fc = null;
 		try {
-			fos = new FileOutputStream(f, false);
-		} catch (FileNotFoundException e2) {
+			fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE,
+					StandardOpenOption.CREATE);
+			fc.truncate(from);
+		} catch (IOException e2) {
+			if (fc != null) {
+				try {
+					fc.close();
+				} catch (IOException e) {
+				}
+			}
+
 			try {
 				s.close();
 			} catch (IOException e) {
 
 			}
 
-			write.print("450 Can't read socket: " + e2.getMessage() + "'\r\n");
-			write.flush();
+			reply("450 Can't write to file: " + e2.getMessage()
+					+ "'\r\n");
 			return;
 		}
-		;
-		byte[] buf = new byte[WRBLKSIZE];
 
-		Integer ctr = 0;
 		Long totctr = 0L;
 		Long quota = -1L;
 
@@ -378,95 +990,112 @@ public final class ClientConnection implements Runnable {
 
 		Long totdirsize = getTotDirSize(f);
 
-		/*
-		 * !!!!!!!!
-		 */
-		do {
-
-			buf = new byte[WRBLKSIZE];
-			try {
-				ctr = s.getInputStream().read(buf);
-			} catch (IOException e) {
-				try {
-					s.close();
-				} catch (IOException e1) {
-
+		try {
+			ReadableByteChannel in = s.getChannel() != null ? s.getChannel()
+					: Channels.newChannel(s.getInputStream());
+			ByteBuffer buf = getXfrBuf();
+
+			CrlfCodec codec = null;
+			ByteBuffer cbuf = null;
+			if (currt == Type.ASCII) {
+				codec = CrlfCodec.fromNet(LINESEP);
+				if (codec.isIdentity()) {
+					codec = null;
+				} else {
+					cbuf = getCvtBuf();
 				}
-
-				write.print("450 Can't read socket: " + e.getMessage()
-						+ "'\r\n");
-				write.flush();
-				return;
 			}
 
-			if (ctr > 0) {
-				try {
-					if (currt == Type.ASCII) {
-						buf = new String(buf, 0, ctr).replaceAll("\r\n",
-								System.getProperty("line.separator"))
-								.getBytes();
-						ctr = buf.length;
-					}
-
-					if (quota > -1) {
+			Boolean eof = false;
 
-						if ((totdirsize + ctr) >= quota) {
-
-							write.print("552 Quota exceeded: "
-									+ (totdirsize + ctr) + " >= " + quota);
-							write.flush();
+			while (!eof) {
+				Integer ctr;
+				try {
+					ctr = in.read(buf);
+				} catch (IOException e) {
+					reply("450 Can't read socket: " + e.getMessage()
+							+ "'\r\n");
+					return;
+				}
 
-							s.close();
+				if (ctr == -1) {
+					if (codec == null) {
+						break;
+					}
+					eof = true;
+				}
 
-							logsem.acquireUninterruptibly();
-							log.addXfrMsg(csock, "Quota exceeded for "
-									+ f.getAbsolutePath() + ": " + totdirsize
-									+ " >= " + quota, Lvl.NORMAL);
-							logsem.release();
+				buf.flip();
+				ByteBuffer wb = buf;
 
-							return;
-						} else {
-							totdirsize += ctr;
-						}
+				if (codec != null) {
+					cbuf.clear();
+					codec.convert(buf, cbuf);
+					if (eof) {
+						codec.finish(cbuf);
 					}
+					cbuf.flip();
+					wb = cbuf;
+				}
 
-					fos.write(buf, 0, ctr);
+				if (quota > -1) {
+					if ((totdirsize + wb.remaining()) >= quota) {
 
-					totctr += ctr;
+						reply("552 Quota exceeded: "
+								+ (totdirsize + wb.remaining()) + " >= "
+								+ quota + "\r\n");
 
-				} catch (IOException e) {
-					try {
-						s.close();
-					} catch (IOException e1) {
+						log.addXfrMsg(csock, "Quota exceeded for "
+								+ f.getAbsolutePath() + ": " + totdirsize
+								+ " >= " + quota, Lvl.NORMAL);
 
+						return;
+					} else {
+						totdirsize += wb.remaining();
 					}
+				}
 
-					write.print("450 Can't write to file: " + e.getMessage()
+				try {
+					while (wb.hasRemaining()) {
+						totctr += fc.write(wb, from + totctr);
+					}
+					xfrProgress(totctr);
+				} catch (IOException e) {
+					reply("450 Can't write to file: " + e.getMessage()
 							+ "'\r\n");
-					write.flush();
 					return;
 				}
-			}
-		} while ((ctr != -1));
 
-		try {
-			s.close();
+				buf.clear();
+			}
 		} catch (IOException e) {
+			reply("450 Can't read socket: " + e.getMessage() + "'\r\n");
+			return;
+		} finally {
+			try {
+				fc.close();
+			} catch (IOException e) {
+			}
 
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+
+			invalidateListing(f);
+			FileCache.getInstance().invalidate(f);
+			FileHandles.getInstance().invalidate(f);
 		}
 
 		Double ts = (System.currentTimeMillis() - start) / 1000.0;
-		logsem.acquireUninterruptibly();
 		log.addXfrMsg(csock, String.format(
 				"Got from you file %s in %.2f s with %.2f KB/s ", f
 						.getAbsolutePath(), ts, (totctr / 1024.0) / ts),
 				Lvl.NORMAL);
-		logsem.release();
 
-		write.print(String.format(
+		reply(String.format(
 				"226 Uploaded file %s in %.2f s with %.2f KB/s\r\n", f
 						.getAbsolutePath(), ts, (totctr / 1024.0) / ts));
-		write.flush();
 
 	}
 
@@ -481,151 +1110,516 @@ public final class ClientConnection implements Runnable {
 			size += file.length();
 		}
 
-		return size;
+		return size;
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doRetrCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'RETR' cmd: " + arg, Lvl.NORMAL);
+
+		final Long from = takeRestart();
+
+		if (from == null) {
+			dropDataSocket();
+			return;
+		}
+
+		File f = new File(arg);
+
+		if (!f.isAbsolute()) {
+			f = new File(wdir, arg);
+		}
+
+		/* a file open already needs no checks */
+		final FileHandles.Handle h = FileHandles.getInstance()
+				.acquireCached(f);
+
+		if (h == null && (!f.exists() || !f.canRead())) {
+			dropDataSocket();
+
+			write.print("450 Can't access file: " + f.getAbsolutePath()
+					+ "'\r\n");
+			write.flush();
+			return;
+		}
+
+		Long len = h != null ? h.getSize() : f.length();
+
+		if (from > len) {
+			if (h != null) {
+				h.release();
+			}
+			dropDataSocket();
+
+			write.print("554 Restart marker " + from + " past end of file ("
+					+ len + "B)\r\n");
+			write.flush();
+			return;
+		}
+
+		len -= from;
+
+		write.print("150 Get ready for " + len + "bytes!\r\n");
+		write.flush();
+
+		final File ff = f;
+		final ByteBuffer hot = isRawType() ? FileCache.getInstance().lookup(f)
+				: null;
+
+		if (hot != null) {
+			if (h != null) {
+				h.release();
+			}
+
+			final ByteBuffer buf = getXfrBuf();
+			startTransfer("RETR " + f.getAbsolutePath(), len,
+					new Runnable() {
+						@Override
+						public void run() {
+							retrieve(ff, from, null, null, buf, hot);
+						}
+					});
+			return;
+		}
+
+		/* the open may outlive the transfer; it reads into a buffer of its own */
+		final ByteBuffer buf = h != null ? getXfrBuf() : takeXfrBuf();
+		final Speculation<FileHandles.Handle> open = h != null ? null
+				: Speculation.start(new Callable<FileHandles.Handle>() {
+					@Override
+					public FileHandles.Handle call() throws IOException {
+						FileHandles.Handle c = FileHandles.getInstance()
+								.acquire(ff);
+						try {
+							c.getChannel().read(buf, from);
+						} catch (IOException e) {
+							c.release();
+							throw e;
+						}
+
+						return c;
+					}
+				});
+
+		startTransfer("RETR " + f.getAbsolutePath(), len, new Runnable() {
+			@Override
+			public void run() {
+				retrieve(ff, from, h, open, buf, null);
+			}
+		});
+	}
+
+	/**
+	 * Sends f over the data connection; run as the session's transfer
+	 * 
+	 * @param from
+	 *            where to start in f
+	 * @param h
+	 *            f, opened; null if it's opened by open or sent from the
+	 *            cache
+	 * @param open
+	 *            opens f and reads the first block into buf; null if h is
+	 *            given or f is sent from the cache
+	 * @param buf
+	 *            transfer buffer; if open is given, it's taken from the
+	 *            session and handed back once open has finished with it
+	 * @param hot
+	 *            f as held by the {@link FileCache}; null to send it from
+	 *            disk
+	 */
+	private void retrieve(File f, Long from, FileHandles.Handle h,
+			Speculation<FileHandles.Handle> open, ByteBuffer buf,
+			ByteBuffer hot) {
+		Socket s = getDataSocket();
+
+		if (s == null) {
+			if (h != null) {
+				h.release();
+			}
+
+			if (open != null) {
+				open.cancel(new Speculation.Discard<FileHandles.Handle>() {
+					@Override
+					public void discard(FileHandles.Handle v) {
+						v.release();
+					}
+				});
+			}
+
+			return;
+		}
+
+		Long start = System.currentTimeMillis();
+
+		FileChannel fc = null;
+
+		if (hot == null && h == null) {
+			try {
+				h = open.join();
+			} catch (Exception e) {
+				putXfrBuf(buf);
+
+				try {
+					s.close();
+				} catch (IOException e1) {
+				}
+
+				reply("550 Can't read file:" + e.getMessage() + "\r\n");
+				return;
+			}
+
+			putXfrBuf(buf);
+		}
+
+		if (hot == null) {
+			fc = h.getChannel();
+		}
+
+		Long ctr = 0L;
+
+		try {
+			if (hot != null) {
+				hot.position((int) Math.min(hot.limit(), from));
+				ctr = sendCached(hot, s, buf);
+			} else if (s.getChannel() != null && isRawType()) {
+				ReadFanOut.Stream rs = ReadFanOut.getInstance().join(
+						h.getPath(), h.getMtime(), h.getSize());
+				try {
+					ctr = sendFileZeroCopy(fc, from, s.getChannel(), rs);
+				} finally {
+					if (rs != null) {
+						rs.leave();
+					}
+				}
+			} else {
+				ctr = sendFileBuffered(fc, from, s.getOutputStream(), buf);
+			}
+
+			s.close();
+
+			Double ts = (System.currentTimeMillis() - start) / 1000.0;
+			log.addXfrMsg(csock, String.format(
+					"Uploaded file %s in %.2f s with %.2f KB/s ", f
+							.getAbsolutePath(), ts, (ctr / 1024.0) / ts),
+					Lvl.NORMAL);
+
+			reply(String.format(
+					"226 Uploaded file %s in %.2f s with %.2f KB/s\r\n", f
+							.getAbsolutePath(), ts, (ctr / 1024.0) / ts));
+
+		} catch (Exception e) {
+			reply("451 Can't send file:" + e.getMessage() + "\r\n");
+		} finally {
+			if (h != null) {
+				h.release();
+			}
+
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+
+	}
+
+	/**
+	 * Sends a file held by the {@link FileCache}, as is
+	 * 
+	 * @param buf
+	 *            transfer buffer, used if the socket has no channel
+	 * @return bytes sent
+	 */
+	private Long sendCached(ByteBuffer hot, Socket s, ByteBuffer buf)
+			throws IOException {
+		Long ctr = 0L;
+		Integer end = hot.limit();
+
+		if (s.getChannel() != null) {
+			while (hot.position() < end) {
+				hot.limit((int) Math.min(end, hot.position() + ZCCHUNK));
+
+				while (hot.hasRemaining()) {
+					ctr += s.getChannel().write(hot);
+				}
+				xfrProgress(ctr);
+			}
+		} else {
+			OutputStream os = s.getOutputStream();
+
+			while (hot.position() < end) {
+				buf.clear();
+				hot.limit(Math.min(end, hot.position() + buf.remaining()));
+				buf.put(hot);
+
+				os.write(buf.array(), 0, buf.position());
+				ctr += buf.position();
+				xfrProgress(ctr);
+			}
+
+			os.flush();
+		}
+
+		FileCache.getInstance().addServed(ctr);
+
+		return ctr;
+	}
+
+	/**
+	 * Sends the file with {@link FileChannel#transferTo}, so the kernel can
+	 * move the data without copying it through the heap; chunks read for
+	 * other downloads of the file are sent from memory instead
+	 * 
+	 * @param from
+	 *            where to start in the file
+	 * @param rs
+	 *            downloads of the file sharing reads; may be null
+	 * @return bytes sent
+	 */
+	private Long sendFileZeroCopy(FileChannel fc, Long from,
+			WritableByteChannel out, ReadFanOut.Stream rs) throws IOException {
+		Long pos = from, size = fc.size();
+
+		while (pos < size) {
+			ByteBuffer b = rs == null ? null : rs.chunk(pos, fc);
+			Long n;
+
+			if (b != null) {
+				Long k = pos - pos % ReadFanOut.CHUNK;
+
+				b.limit((int) Math.min(b.limit(), size - k));
+				if (pos - k >= b.limit()) {
+					break;
+				}
+
+				b.position((int) (pos - k));
+				n = 0L;
+				while (b.hasRemaining()) {
+					n += out.write(b);
+				}
+			} else {
+				Long step = rs == null ? ZCCHUNK : ReadFanOut.CHUNK - pos
+						% ReadFanOut.CHUNK;
+				n = fc.transferTo(pos, Math.min(size - pos, step), out);
+
+				if (n <= 0) {
+					size = Math.min(size, fc.size());
+					if (pos >= size) {
+						break;
+					}
+				}
+			}
+
+			pos += n;
+			xfrProgress(pos - from);
+		}
+
+		return pos - from;
 	}
 
 	/**
-	 * @param readLine
+	 * Sends the file through the session's transfer buffer, converting line
+	 * ends in ASCII mode
+	 * 
+	 * @param from
+	 *            where to start in the file
+	 * @param buf
+	 *            transfer buffer; may already hold the first block read
+	 *            from fc at from
+	 * @return bytes sent
 	 */
-	private void doRetrCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'STRU' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
+	private Long sendFileBuffered(FileChannel fc, Long from, OutputStream os,
+			ByteBuffer buf) throws IOException {
+		Long ctr = 0L;
 
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
+		CrlfCodec codec = null;
+		ByteBuffer cbuf = null;
+		if (currt == Type.ASCII) {
+			codec = CrlfCodec.toNet(LINESEP);
+			if (codec.isIdentity()) {
+				codec = null;
+			} else {
+				cbuf = getCvtBuf();
+			}
 		}
 
-		if (!chechAreCmdArgsCntOk(readLine, 1)) {
-			return;
-		}
+		/* the channel is shared, so its position is left alone */
+		Long rpos = from + buf.position();
+		Integer n;
 
-		if (wdir == null) {
-			wdir = new File(accnt.getHomeDir().getAbsolutePath());
-		}
+		while ((n = fc.read(buf, rpos)) != -1 || buf.position() > 0) {
+			if (n > 0) {
+				rpos += n;
+			}
 
-		String[] cmd = readLine.split(" ", 2);
-		File f = new File(cmd[1]);
+			buf.flip();
+			ByteBuffer wb = buf;
 
-		if (!f.isAbsolute()) {
-			f = new File(wdir, cmd[1]);
-		}
+			if (codec != null) {
+				cbuf.clear();
+				codec.convert(buf, cbuf);
+				cbuf.flip();
+				wb = cbuf;
+			}
 
-		if (!f.exists() || !f.canRead()) {
-			write.print("450 Can't access file: " + f.getAbsolutePath()
-					+ "'\r\n");
-			write.flush();
-			return;
-		} else {
-			write.print("150 Get ready for " + f.length() + "bytes!\r\n");
-			write.flush();
-		}
+			os.write(wb.array(), wb.position(), wb.remaining());
+			ctr += wb.remaining();
+			xfrProgress(ctr);
 
-		Socket s = getDataSocket();
+			buf.clear();
+		}
 
-		if (s == null) {
-			write.print("425 Can't open socket\r\n");
-			write.flush();
-			return;
+		if (codec != null) {
+			cbuf.clear();
+			codec.finish(cbuf);
+			os.write(cbuf.array(), 0, cbuf.position());
+			ctr += cbuf.position();
 		}
 
-		Long start = System.currentTimeMillis();
+		os.flush();
 
-		final Integer RDBLKSIZE = 1024;
-		FileInputStream fis;
-		try {
-			fis = new FileInputStream(f);
-		} catch (FileNotFoundException e) {
-			write.print("550 Can't read file:" + e.getMessage() + "\r\n");
-			write.flush();
-			return;
-		}
+		return ctr;
+	}
 
-		byte[] buf = new byte[RDBLKSIZE];
-		Long ctr = 0L;
+	/**
+	 * @return output buffer for line end translation of a whole transfer
+	 *         block, cleared
+	 */
+	private ByteBuffer getCvtBuf() {
+		if (cvtbuf == null) {
+			cvtbuf = ByteBuffer.allocate(CrlfCodec.outSize(XFRBLKSIZE));
+		}
 
-		try {
-			while ((fis.available() >= RDBLKSIZE) && ((fis.read(buf)) != -1)) {
-
-				if (currt == Type.ASCII) {
-					if (!System.getProperty("line.separator").equalsIgnoreCase(
-							"\r\n")) {
-						buf = new String(buf, 0, RDBLKSIZE).replaceAll(
-								System.getProperty("line.separator"), "\r\n")
-								.getBytes();
-					}
+		cvtbuf.clear();
+		return cvtbuf;
+	}
 
-				}
+	/**
+	 * @return true if files go over the data connection byte for byte
+	 */
+	private Boolean isRawType() {
+		return currt == Type.IMAGE || LINESEP.equals("\r\n");
+	}
 
-				s.getOutputStream().write(buf);
+	/**
+	 * Takes the REST marker for a transfer about to start
+	 * 
+	 * @return the marker, 0 if there's none, or null if it can't be used
+	 *         and the client was told so
+	 */
+	private Long takeRestart() {
+		Long from = restpos;
+		restpos = 0L;
 
-				ctr += RDBLKSIZE;
+		if (from > 0 && !isRawType()) {
+			write.print("504 Restart works in TYPE I only\r\n");
+			write.flush();
+			return null;
+		}
 
-				buf = new byte[RDBLKSIZE];
+		return from;
+	}
 
-			}
+	/**
+	 * Runs body as the session's transfer
+	 * 
+	 * @param size
+	 *            bytes to go, -1 if not known
+	 */
+	private void startTransfer(String what, Long size, Runnable body) {
+		Transfer t = new Transfer(what, size, body);
+		xfr = t;
 
-			if ((fis.available() > 0)) {
-				buf = new byte[fis.available()];
-				fis.read(buf);
+		XFRPOOL.execute(t);
+	}
 
-				if (currt == Type.ASCII) {
-					if (!System.getProperty("line.separator").equalsIgnoreCase(
-							"\r\n")) {
-						buf = new String(buf).replaceAll(
-								System.getProperty("line.separator"), "\r\n")
-								.getBytes();
-					}
+	/**
+	 * @return the transfer running on this thread, or null
+	 */
+	private Transfer myXfr() {
+		Transfer t = xfr;
 
+		if (t != null) {
+			synchronized (t) {
+				if (t.thr == Thread.currentThread()) {
+					return t;
 				}
-
-				s.getOutputStream().write(buf);
-				ctr += buf.length;
 			}
+		}
 
-			s.close();
-
-			Double ts = (System.currentTimeMillis() - start) / 1000.0;
-			logsem.acquireUninterruptibly();
-			log.addXfrMsg(csock, String.format(
-					"Uploaded file %s in %.2f s with %.2f KB/s ", f
-							.getAbsolutePath(), ts, (ctr / 1024.0) / ts),
-					Lvl.NORMAL);
-			logsem.release();
+		return null;
+	}
 
-			write.print(String.format(
-					"226 Uploaded file %s in %.2f s with %.2f KB/s\r\n", f
-							.getAbsolutePath(), ts, (ctr / 1024.0) / ts));
-			write.flush();
+	/**
+	 * Sends a final reply; from a transfer, it's dropped if the transfer was
+	 * aborted
+	 */
+	private void reply(String msg) {
+		Transfer t = myXfr();
 
-		} catch (Exception e) {
-			write.print("451 Can't send file:" + e.getMessage() + "\r\n");
+		if (t != null) {
+			t.reply(msg);
+		} else {
+			write.print(msg);
 			write.flush();
-			return;
 		}
-
 	}
 
 	/**
-	 * @param readLine
+	 * @param n
+	 *            bytes moved so far by the running transfer
 	 */
-	private void doPortCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'STRU' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
+	private void xfrProgress(Long n) {
+		Transfer t = xfr;
 
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
+		if (t != null) {
+			t.done = n;
 		}
+	}
 
-		if (!chechAreCmdArgsCntOk(readLine, 1)) {
-			return;
+	/**
+	 * @return the session's transfer buffer, cleared
+	 */
+	private ByteBuffer getXfrBuf() {
+		if (xfrbuf == null) {
+			xfrbuf = ByteBuffer.allocate(XFRBLKSIZE);
 		}
 
-		String[] cmd = readLine.split(" ", 2);
-		String[] addr = cmd[1].split(",");
+		xfrbuf.clear();
+		return xfrbuf;
+	}
+
+	/**
+	 * Takes the transfer buffer away from the session, for work that may
+	 * still use it after the transfer has ended
+	 * 
+	 * @return the buffer, cleared; the session makes a new one meanwhile
+	 */
+	private ByteBuffer takeXfrBuf() {
+		ByteBuffer b = getXfrBuf();
+		xfrbuf = null;
+
+		return b;
+	}
+
+	/**
+	 * Gives back a buffer got from {@link #takeXfrBuf()} once nothing else
+	 * uses it
+	 */
+	private void putXfrBuf(ByteBuffer b) {
+		xfrbuf = b;
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doPortCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'PORT' cmd: " + arg, Lvl.NORMAL);
+
+		String[] addr = arg.split(",");
 
 		if (addr.length != 6) {
 			write.print("501 Invalid format of PORT address\r\n");
@@ -670,99 +1664,74 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doStruCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'STRU' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
+	private void doStruCmd() {
+		log.addCtlMsg(csock, "Got 'STRU' cmd", Lvl.NORMAL);
 
-		write.print("200 STRUCTURE is always FILE\r\n");
+		write.print(STRUMSG);
 		write.flush();
 
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doModeCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'TYPE' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
+	private void doModeCmd() {
+		log.addCtlMsg(csock, "Got 'MODE' cmd", Lvl.NORMAL);
 
-		write.print("200 MODE is always STREAM\r\n");
+		write.print(MODEMSG);
 		write.flush();
 
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doSystCmd(String readLine) {
+	private void doSystCmd() {
 		/*
-		 * if (accnt == null) { notLoggedInErrMsg(readLine); return; }
+		 * if (accnt == null) { notLoggedInErrMsg(); return; }
 		 */
 
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'SYST' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
+		log.addCtlMsg(csock, "Got 'SYST' cmd", Lvl.NORMAL);
 
-		if (!chechAreCmdArgsCntOk(readLine, 0)) {
-			return;
-		}
-		write.print("215 UNIX type: L8 (" + System.getProperty("os.name")
-				+ "; " + System.getProperty("java.vendor") + " Java)\r\n");
+		write.print(SYSTMSG);
 		write.flush();
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doTypeCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'TYPE' cmd:" + readLine, Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
-
-		String[] cmd = readLine.split(" ", 3);
+	private void doTypeCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'TYPE' cmd: " + arg, Lvl.NORMAL);
 
-		if (cmd.length == 1) {
+		if (arg == null) {
 			write.print("501 You forgot tell me which type to set\r\n");
 			write.flush();
 		} else {
+			/* type and an option */
+			String[] cmd = arg.split(" ", 2);
+
 			String mod;
-			if (cmd.length == 2) {
+			if (cmd.length == 1) {
 				mod = "";
 			} else {
 				mod = "; option is always 'N'";
 			}
 
-			if (cmd[1].equalsIgnoreCase("A")) {
+			if (cmd[0].equalsIgnoreCase("A")) {
 				currt = Type.ASCII;
 				write.print("200 Set type ASCII" + mod + "\r\n");
-			} else if (cmd[1].equalsIgnoreCase("I")) {
+			} else if (cmd[0].equalsIgnoreCase("I")) {
 				currt = Type.IMAGE;
 				write.print("200 Set type IMAGE/BINARY" + mod + "\r\n");
-			} else if (cmd[1].equalsIgnoreCase("E")
-					|| cmd[1].equalsIgnoreCase("L")) {
-				write.print("504 Representatyion type '" + cmd[1]
+			} else if (cmd[0].equalsIgnoreCase("E")
+					|| cmd[0].equalsIgnoreCase("L")) {
+				write.print("504 Representatyion type '" + cmd[0]
 						+ "' not supported\r\n");
 			} else {
-				write.print("501 Representation type '" + cmd[1]
+				write.print("501 Representation type '" + cmd[0]
 						+ "' is invalid\r\n");
 			}
 		}
@@ -772,121 +1741,117 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doPwdCmd(String readLine) {
-		logsem.acquireUninterruptibly();
+	private void doPwdCmd() {
 		log.addCtlMsg(csock, "Got 'PWD' cmd", Lvl.NORMAL);
-		logsem.release();
 
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
+		write.print("257 \"" + wdir.getAbsolutePath().replaceAll("\"", "\"\"")
+				+ "\" <- you are here\r\n");
+		write.flush();
 
-		if (!chechAreCmdArgsCntOk(readLine, 0)) {
-			return;
-		}
+	}
 
-		if (wdir == null) {
-			wdir = new File(accnt.getHomeDir().getAbsolutePath());
+	/**
+	 * Drops cached listings showing f: its directory's and the one above,
+	 * which shows the directory's time
+	 */
+	private void invalidateListing(File f) {
+		File d = f.getAbsoluteFile().getParentFile();
+
+		if (d != null) {
+			ListingCache.getInstance().invalidate(d);
+
+			if (d.getParentFile() != null) {
+				ListingCache.getInstance().invalidate(d.getParentFile());
+			}
 		}
+	}
 
-		write.print("257 \"" + wdir.getAbsolutePath().replaceAll("\"", "\"\"")
-				+ "\" <- you are here\r\n");
-		write.flush();
+	/**
+	 * Forgets the data connection set up for a command that won't run
+	 */
+	private void dropDataSocket() {
+		if (dsc != null) {
+			dsc.cancel();
+			dsc = null;
+		}
 
+		port_addr = null;
 	}
 
 	private Socket getDataSocket() {
-		if (dsc != null) {
-			if (dsc.getStatus() == Status.FINISHED) {
-				Socket s = dsc.getDataSocket();
-				try {
-					dsc.join(250);
-				} catch (InterruptedException e) {
-				}
+		Transfer t = myXfr();
 
-				dsc = null;
+		if (t != null && dsc != null && !t.attach(dsc)) {
+			dsc = null;
+			return null;
+		}
 
-				st_conns++;
-				return s;
-			} else if (dsc.getStatus() == Status.WAITNIG) {
-				while (dsc.getStatus() == Status.WAITNIG) {
-					try {
-						Thread.sleep(500);
-					} catch (InterruptedException e) {
-					}
-				}
-				st_conns++;
-				return getDataSocket();
+		Socket s = openDataSocket();
 
-			} else if (dsc.getStatus() == Status.ERROR) {
-				write.print("425 Can't open passive data connection: "
-						+ dsc.getExc().getMessage() + "\r\n");
-				write.flush();
+		if (s != null && t != null && !t.attach(s)) {
+			return null;
+		}
 
-				dsc = null;
+		return s;
+	}
 
-				return null;
+	private Socket openDataSocket() {
+		if (dsc != null) {
+			DataSocketCreator d = dsc;
+			dsc = null;
 
-			} else {
-				write
-						.print("425 Can't open passive data connection: there is noone on the other side\r\n");
-				write.flush();
+			try {
+				Socket s = d.getDataSocket();
 
-				dsc = null;
+				st_conns++;
+				return s;
+			} catch (IOException e) {
+				reply("425 Can't open passive data connection: "
+						+ e.getMessage() + "\r\n");
 
 				return null;
 			}
 		} else if (port_addr != null) {
 			try {
-				Socket s = new Socket(port_addr.getHostName(), port_addr
-						.getPort());
+				Socket s = SocketChannel.open(port_addr).socket();
 
-				logsem.acquireUninterruptibly();
 				log.addCtlMsg(csock, "Made succesful active connection @ "
 						+ port_addr, Lvl.NORMAL);
-				logsem.release();
 
 				port_addr = null;
 				st_conns++;
 				return s;
 
 			} catch (Exception e) {
-				logsem.acquireUninterruptibly();
 				log.addCtlMsg(csock,
 						"Failed to make  succesful active connection @ "
 								+ port_addr, Lvl.NORMAL);
-				logsem.release();
 
-				write.print("425 PORT FAIL: " + e.getMessage() + "\r\n");
-				write.flush();
+				reply("425 PORT FAIL: " + e.getMessage() + "\r\n");
 
 				port_addr = null;
 				return null;
 			}
 		} else {
 			try {
-				Socket s = new Socket(csock.getInetAddress(), 20);
+				Socket s = SocketChannel.open(
+						new InetSocketAddress(csock.getInetAddress(), 20))
+						.socket();
 
-				logsem.acquireUninterruptibly();
 				log.addCtlMsg(csock,
 						"Made succesful active connection @ p. 20", Lvl.NORMAL);
-				logsem.release();
 
 				return s;
 			} catch (IOException e) {
 
-				logsem.acquireUninterruptibly();
 				log.addCtlMsg(csock,
 						"Failed to make succesful active connection @ p. 20",
 						Lvl.WARNING);
-				logsem.release();
 
-				write.print("425 Can't open active def data connection: "
+				reply("425 Can't open active def data connection: "
 						+ e.getMessage() + "\r\n");
-				write.flush();
 
 				return null;
 			}
@@ -895,39 +1860,35 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doEpsvCmd(String readLine) {
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'EPSV' command: " + readLine, Lvl.NORMAL);
-		logsem.release();
+	private void doEpsvCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'EPSV' command: " + arg, Lvl.NORMAL);
 
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
+		InetSocketAddress isa = makePassiveDataSocket();
+
+		if (isa == null) {
+			write.print("425 Can't open passive port\r\n");
+			write.flush();
 			return;
 		}
 
-		String[] cmd = readLine.split(" ", 2);
-
-		InetSocketAddress isa = makePassiveDataSocket(readLine);
-
-		if (cmd.length == 2) {
+		if (arg != null) {
 
-			if (cmd[1].equalsIgnoreCase("ALL")) {
+			if (arg.equalsIgnoreCase("ALL")) {
 				write.print("504 ALL for EPSV not implemented\r\n");
-			} else if (cmd[1].equalsIgnoreCase("1")
+			} else if (arg.equalsIgnoreCase("1")
 					&& !(isa.getAddress() instanceof Inet4Address)) {
 				write.print("522 Network protocol not supported, use (2)\r\n");
-			} else if (cmd[1].equalsIgnoreCase("2")
+			} else if (arg.equalsIgnoreCase("2")
 					&& !(isa.getAddress() instanceof Inet6Address)) {
 				write.print("522 Network protocol not supported, use (1)\r\n");
-			} else if (cmd[1].equalsIgnoreCase("1")
-					|| cmd[1].equalsIgnoreCase("2")) {
+			} else if (arg.equalsIgnoreCase("1")
+					|| arg.equalsIgnoreCase("2")) {
 
-				logsem.acquireUninterruptibly();
 				log.addCtlMsg(csock,
 						"Went into EPSV on port: " + isa.getPort(), Lvl.NORMAL);
-				logsem.release();
 
 				write.print("229 Entering Extended Passive Mode (|||"
 						+ isa.getPort() + "|)\r\n");
@@ -935,18 +1896,13 @@ public final class ClientConnection implements Runnable {
 				write
 						.print("501 Authors of RFC2428 would be sad becase of you using invalid parameters\r\n");
 			}
-		} else if (cmd.length == 1) {
+		} else {
 
-			logsem.acquireUninterruptibly();
 			log.addCtlMsg(csock, "Went into EPSV on port: " + isa.getPort(),
 					Lvl.NORMAL);
-			logsem.release();
 
 			write.print("229 Entering Extended Passive Mode (|||"
 					+ isa.getPort() + "|)\r\n");
-		} else {
-			write
-					.print("501 Authors of RFC2428 would be sad becase of you using invalid parameters\r\n");
 		}
 
 		write.flush();
@@ -954,34 +1910,23 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doPasvCmd(String readLine) {
+	private void doPasvCmd() {
 
-		logsem.acquireUninterruptibly();
 		log.addCtlMsg(csock, "Got 'PASV' command", Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
 
-		String addr = makePasvAddr(makePassiveDataSocket(readLine));
+		String addr = makePasvAddr(makePassiveDataSocket());
 
 		if (addr.charAt(0) != '(') {
 
-			logsem.acquireUninterruptibly();
 			log.addCtlMsg(csock, "Failed to bind PASV ssock: " + addr,
 					Lvl.ERROR);
-			logsem.release();
 
 			write.print("425 " + addr + "\r\n");
 		} else {
 
-			logsem.acquireUninterruptibly();
 			log.addCtlMsg(csock, "Bound PASV sock: " + addr, Lvl.NORMAL);
-			logsem.release();
 
 			write.print("227 Entering Passive Mode " + addr + "\r\n");
 		}
@@ -992,6 +1937,10 @@ public final class ClientConnection implements Runnable {
 
 	private String makePasvAddr(InetSocketAddress isa) {
 
+		if (isa == null) {
+			return "Can't open passive port";
+		}
+
 		if (isa.getAddress() instanceof Inet6Address) {
 			return "IPv6 in PASV not supported";
 		}
@@ -1005,22 +1954,23 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private InetSocketAddress makePassiveDataSocket(String readLine) {
+	private InetSocketAddress makePassiveDataSocket() {
+
+		if (dsc != null) {
+			dsc.cancel();
+		}
 
-		dsc = new DataSocketCreator(smngr, log);
+		dsc = new DataSocketCreator(pasv);
 
 		InetSocketAddress isa = null;
 
 		try {
-			isa = dsc.prepare();
-			dsc.start();
+			isa = dsc.prepare(csock);
 		} catch (Exception e) {
-			logsem.acquireUninterruptibly();
 			log.addMiscMsg(null, "Failed to make data ssocket: "
 					+ e.getLocalizedMessage(), Lvl.NORMAL);
-			logsem.release();
 		}
 
 		return isa;
@@ -1028,31 +1978,14 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doListCmd(String readLine) {
-
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'LIST' cmd: " + readLine, Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
-
-		if (wdir == null) {
-			wdir = new File(accnt.getHomeDir().getAbsolutePath());
-		}
-
-		Socket s = getDataSocket();
+	private void doListCmd(LineFramer.Line line) {
+		String arg = line.arg();
 
-		if (s == null) {
-			return;
-		}
+		log.addCtlMsg(csock, "Got 'LIST' cmd: " + arg, Lvl.NORMAL);
 
-		String[] cmd = readLine.split(" ");
-		ArrayList<String> ret;
+		String[] cmd = arg == null ? new String[0] : arg.split(" ");
 
 		/*
 		 * if (cmd.length == 1) { write.print("150 Listing '.'\r\n");
@@ -1068,244 +2001,290 @@ public final class ClientConnection implements Runnable {
 		 * } else {
 		 */
 		String t = null;
+		Boolean rec = false;
 		for (String cc : cmd) {
-			if (!cc.equalsIgnoreCase("LIST") && !cc.startsWith("-")) {
+			if (cc.startsWith("-")) {
+				rec |= cc.indexOf('R') > 0;
+			} else if (cc.length() > 0) {
 				t = cc;
 				break;
 			}
 		}
 
-		if (t == null) {
-			ret = makeCrappyLs(".");
-			write.print("150 Listing '.'; options not supported\r\n");
-			write.flush();
+		File tgt = getLsTarget(t == null ? "." : t);
+
+		if (tgt == null) {
+			dropDataSocket();
+			return;
+		}
+
+		if (rec) {
+			sendTree(tgt, "150 Listing '" + (t == null ? "." : t)
+					+ "' recursively");
+		} else if (t == null) {
+			sendListing(tgt, false, "150 Listing '.'; options not supported");
 		} else {
-			write.print("150 Listing '" + t + "'; options not supported'\r\n");
-			write.flush();
+			sendListing(tgt, false, "150 Listing '" + t
+					+ "'; options not supported'");
+		}
+	}
+
+	/**
+	 * Sends a listing over the data connection
+	 * 
+	 * @param tgt
+	 *            what to list
+	 * @param mlsd
+	 *            true for MLSD format
+	 * @param prelim
+	 *            the 150 reply
+	 */
+	private void sendListing(final File tgt, final Boolean mlsd,
+			String prelim) {
+		ListingCache lcache = ListingCache.getInstance();
+		ListingCache.Lookup lc = mlsd ? null : lcache.lookup(tgt);
+		byte[] cached = lc == null ? null : lc.getData();
+
+		Speculation<DirListing> lsspec = null;
+		if (cached == null) {
+			lsspec = Speculation.start(new Callable<DirListing>() {
+				@Override
+				public DirListing call() throws IOException {
+					DirListing dl = new DirListing(tgt, mlsd);
+					dl.prefetch();
+
+					return dl;
+				}
+			});
+		}
 
-			ret = makeCrappyLs(t);
+		Socket s = getDataSocket();
+
+		if (s == null) {
+			if (lsspec != null) {
+				lsspec.cancel(new Speculation.Discard<DirListing>() {
+					@Override
+					public void discard(DirListing v) {
+						v.close();
+					}
+				});
+			}
+			lcache.put(lc, null);
+			return;
 		}
 
-		// }
+		write.print(prelim + "\r\n");
+		write.flush();
 
-		if (ret != null) {
+		if (cached != null) {
 			try {
-				OutputStreamWriter osw = new OutputStreamWriter(s
-						.getOutputStream());
+				OutputStream os = s.getOutputStream();
+				os.write(cached);
+				os.flush();
+				st_transf += cached.length;
 
-				for (String ls : ret) {
-					try {
-						osw.write(ls + "\r\n");
-						st_transf += (ls + "\r\n").length();
-					} catch (IOException e1) {
-						logsem.acquireUninterruptibly();
-						log.addMiscMsg(null, "Can't write to socket: "
-								+ e1.getLocalizedMessage(), Lvl.ERROR);
-						logsem.release();
-
-						write.print("426 Connection b0rked: " + e1.getMessage()
-								+ "\r\n");
-						write.flush();
+				write.print(LSDONEMSG);
+			} catch (IOException e) {
+				write.print("426 Connection b0rked: " + e.getMessage()
+						+ "\r\n");
+			}
+			write.flush();
 
-						try {
-							s.close();
-						} catch (IOException e) {
-							logsem.acquireUninterruptibly();
-							log.addMiscMsg(null, "Can't close socket: "
-									+ e.getLocalizedMessage(), Lvl.ERROR);
-							logsem.release();
-						}
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
 
-						return;
-					}
-				}
+			return;
+		}
+
+		DirListing dl = null;
+
+		try {
+			dl = lsspec.join();
+		} catch (Exception e) {
+			lcache.put(lc, null);
+
+			log.addMiscMsg(null, "Can't list dir '" + tgt.getAbsolutePath()
+					+ "': " + e.getLocalizedMessage(), Lvl.NOTICE);
+
+			write.print("550 Cat list dir @ '" + tgt.getAbsolutePath()
+					+ "': " + e.getMessage() + "\r\n");
+			write.flush();
+		}
+
+		if (dl != null) {
+			try {
+				Writer osw = new BufferedWriter(new OutputStreamWriter(s
+						.getOutputStream()), XFRBLKSIZE);
+
+				StringBuilder tee = lc == null ? null : new StringBuilder();
+				Long len = dl.writeTo(osw, tee, lcache.getMaxEntrySize());
+
+				st_transf += len;
 
 				osw.flush();
 				osw.close();
 
+				if (tee != null && tee.length() == len
+						&& dl.getError() == null) {
+					lcache.put(lc, tee.toString().getBytes());
+				} else {
+					lcache.put(lc, null);
+				}
+
 				try {
 					s.close();
 				} catch (IOException e) {
-					logsem.acquireUninterruptibly();
 					log.addMiscMsg(null, "Can't close socket: "
 							+ e.getLocalizedMessage(), Lvl.ERROR);
-					logsem.release();
 				}
 
-				write.print("226 Listing done\r\n");
+				if (dl.getError() != null) {
+					write.print("451 Listing incomplete: "
+							+ dl.getError().getMessage() + "\r\n");
+				} else {
+					write.print(LSDONEMSG);
+				}
 				write.flush();
 
 			} catch (IOException e) {
-
-				logsem.acquireUninterruptibly();
-				log.addMiscMsg(null, "Can't open socket: "
+				log.addMiscMsg(null, "Can't write to socket: "
 						+ e.getLocalizedMessage(), Lvl.ERROR);
-				logsem.release();
 
-				write.print("425 Can't do data connection: " + e.getMessage()
+				write.print("426 Connection b0rked: " + e.getMessage()
 						+ "\r\n");
 				write.flush();
+
+				lcache.put(lc, null);
+			} finally {
+				dl.close();
 			}
 		}
 
 		try {
 			s.close();
 		} catch (IOException e) {
-			logsem.acquireUninterruptibly();
 			log.addMiscMsg(null, "Can't close socket: "
 					+ e.getLocalizedMessage(), Lvl.ERROR);
-			logsem.release();
 		}
 
 	}
 
 	/**
-	 * @param readLine
+	 * Sends a recursive listing over the data connection; the tree must be
+	 * inside the home dir
+	 * 
+	 * @param tgt
+	 *            top of the tree
+	 * @param prelim
+	 *            the 150 reply
 	 */
-	private ArrayList<String> makeCrappyLs(String pth) {
-		File thetgt = new File(pth);
+	private void sendTree(File tgt, String prelim) {
+		try {
+			String top = tgt.getCanonicalPath();
+			String home = accnt.getHomeDir().getCanonicalPath();
 
-		if (pth.equalsIgnoreCase("..")) {
-			thetgt = wdir.getParentFile();
-		} else if (pth.equalsIgnoreCase(".")) {
-			thetgt = wdir.getAbsoluteFile();
-		} else if (!thetgt.isAbsolute()) {
-			thetgt = new File(wdir, pth);
-		}
+			if (!top.equals(home)
+					&& !top.startsWith(home.endsWith(File.separator) ? home
+							: home + File.separator)) {
+				dropDataSocket();
 
-		if (!thetgt.exists()) {
-			write.print("550 Object @ '" + pth + "' doesn't exist\r\n");
-			write.flush();
+				write.print("550 Won't walk outside your home dir\r\n");
+				write.flush();
+				return;
+			}
+		} catch (IOException e) {
+			dropDataSocket();
 
-			return null;
+			write.print("550 Can't resolve '" + tgt.getPath() + "': "
+					+ e.getMessage() + "\r\n");
+			write.flush();
+			return;
 		}
 
-		if (thetgt.isDirectory()) {
-			return makeDirLs(thetgt);
-		} else {
-			return makeNotDirLs(thetgt, false);
+		if (!tgt.isDirectory()) {
+			sendListing(tgt, false, prelim);
+			return;
 		}
-	}
-
-	/**
-	 * @param thetgt
-	 * @return
-	 */
-	@SuppressWarnings("deprecation")
-	private ArrayList<String> makeNotDirLs(File thetgt, Boolean cnt) {
-		ArrayList<String> ret = new ArrayList<String>();
 
-		Date d = new Date(thetgt.lastModified());
-		String hr;
+		TreeListing tl = new TreeListing(tgt);
+		tl.start();
 
-		if (d.getYear() != (new Date()).getYear()) {
-			hr = String.valueOf(1900 + d.getYear());
-		} else {
+		Socket s = getDataSocket();
 
-			hr = String.format(Locale.ENGLISH, "%tR", d);
+		if (s == null) {
+			tl.cancel();
+			return;
 		}
 
-		String fn;
-
-		if (!cnt) {
-			fn = thetgt.getAbsolutePath();
-		} else {
-			fn = thetgt.getName();
-		}
+		write.print(prelim + "\r\n");
+		write.flush();
 
-		ret.add(String.format(Locale.ENGLISH,
-				"%-10s 0 unknown unknown %12d %tb %td %5s %s",
-				makeFileRights(thetgt), thetgt.length(), d, d, hr, fn));
+		try {
+			Writer osw = new BufferedWriter(new OutputStreamWriter(s
+					.getOutputStream()), XFRBLKSIZE);
 
-		return ret;
-	}
+			st_transf += tl.writeTo(osw);
 
-	/**
-	 * @param thetgt
-	 * @return
-	 */
-	private String makeFileRights(File thetgt) {
-		String rgt = "";
+			osw.flush();
+			osw.close();
 
-		if (thetgt.isDirectory()) {
-			rgt += "d";
-		} else {
-			rgt += "-";
-		}
+			if (tl.getUnreadable() > 0) {
+				write.print("226 Listing done; " + tl.getUnreadable()
+						+ " dir(s) couldn't be read\r\n");
+			} else {
+				write.print(LSDONEMSG);
+			}
+		} catch (IOException e) {
+			tl.cancel();
 
-		if (thetgt.canRead()) {
-			rgt += "r";
-		} else {
-			rgt += "-";
-		}
+			log.addMiscMsg(null, "Can't write to socket: "
+					+ e.getLocalizedMessage(), Lvl.ERROR);
 
-		if (thetgt.canWrite()) {
-			rgt += "w";
-		} else {
-			rgt += "-";
+			write.print("426 Connection b0rked: " + e.getMessage() + "\r\n");
 		}
+		write.flush();
 
-		if (thetgt.canExecute()) {
-			rgt += "x";
-		} else {
-			rgt += "-";
+		try {
+			s.close();
+		} catch (IOException e) {
+			log.addMiscMsg(null, "Can't close socket: "
+					+ e.getLocalizedMessage(), Lvl.ERROR);
 		}
-
-		rgt += "------";
-
-		return rgt;
 	}
 
 	/**
-	 * @param thetgt
-	 * @return
+	 * @param pth
+	 * @return what to list or null if there is no such thing (client is told
+	 *         so)
 	 */
-	private ArrayList<String> makeDirLs(File thetgt) {
-
-		ArrayList<String> ret = new ArrayList<String>();
-
-		try {
-			for (File s : thetgt.listFiles()) {
-				ret.addAll(makeNotDirLs(s, true));
-			}
-		} catch (Exception e) {
+	private File getLsTarget(String pth) {
+		File thetgt = new File(pth);
 
-			logsem.acquireUninterruptibly();
-			log.addMiscMsg(null, "Can't list dir '" + thetgt.getAbsolutePath()
-					+ "': " + e.getLocalizedMessage(), Lvl.NOTICE);
-			logsem.release();
+		if (pth.equalsIgnoreCase("..")) {
+			thetgt = wdir.getParentFile();
+		} else if (pth.equalsIgnoreCase(".")) {
+			thetgt = wdir.getAbsoluteFile();
+		} else if (!thetgt.isAbsolute()) {
+			thetgt = new File(wdir, pth);
+		}
 
-			write.print("550 Cat list dir @ '" + thetgt.getAbsolutePath()
-					+ "': " + e.getMessage() + "\r\n");
+		if (!thetgt.exists()) {
+			write.print("550 Object @ '" + pth + "' doesn't exist\r\n");
 			write.flush();
 
 			return null;
 		}
 
-		return ret;
-
+		return thetgt;
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doCdupCmd(String readLine) {
-		logsem.acquireUninterruptibly();
+	private void doCdupCmd() {
 		log.addCtlMsg(csock, "Got 'CDUP' command", Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
-
-		if (!chechAreCmdArgsCntOk(readLine, 0)) {
-			return;
-		}
-
-		if (wdir == null) {
-			wdir = new File(accnt.getHomeDir().getAbsolutePath());
-		}
 
 		File tmp = wdir.getParentFile();
 		if (tmp == null) {
@@ -1317,46 +2296,30 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doCwdCmd(String readLine) {
-
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'CWD' command: " + readLine, Lvl.NORMAL);
-		logsem.release();
-
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-			return;
-		}
-
-		if (!chechAreCmdArgsCntOk(readLine, 1)) {
-			return;
-		}
-
-		if (wdir == null) {
-			wdir = new File(accnt.getHomeDir().getAbsolutePath());
-		}
+	private void doCwdCmd(LineFramer.Line line) {
+		String arg = line.arg();
 
-		String[] cmd = readLine.split(" ", 2);
+		log.addCtlMsg(csock, "Got 'CWD' command: " + arg, Lvl.NORMAL);
 
-		File ttmp = new File(cmd[1]);
+		File ttmp = new File(arg);
 		File tmp;
 
-		if (cmd[1].equalsIgnoreCase("..")) {
+		if (arg.equalsIgnoreCase("..")) {
 			tmp = wdir.getParentFile();
 			tmp = tmp == null ? wdir.getAbsoluteFile() : tmp;
-		} else if (cmd[1].equalsIgnoreCase(".")) {
+		} else if (arg.equalsIgnoreCase(".")) {
 			tmp = wdir.getAbsoluteFile();
-		} else if (cmd[1].endsWith("/.") || cmd[1].endsWith("\\.")) {
-			tmp = new File(cmd[1].substring(0, cmd[1].length() - 1));
+		} else if (arg.endsWith("/.") || arg.endsWith("\\.")) {
+			tmp = new File(arg.substring(0, arg.length() - 1));
 			if (!ttmp.isAbsolute()) {
 				tmp = new File(wdir, tmp.getPath());
 			}
 		} else if (ttmp.isAbsolute()) {
 			tmp = ttmp;
 		} else {
-			tmp = new File(wdir, cmd[1]);
+			tmp = new File(wdir, arg);
 		}
 
 		changeWDir(tmp);
@@ -1375,10 +2338,8 @@ public final class ClientConnection implements Runnable {
 			write.print("550 I'm not allowed to go there.\r\n");
 		} else {
 
-			logsem.acquireUninterruptibly();
 			log.addCtlMsg(csock, "Changed WD: " + tmp.getAbsolutePath(),
 					Lvl.NORMAL);
-			logsem.release();
 
 			write.print("250 Yay! I'm now at: \"" + tmp.getAbsolutePath()
 					+ "\"! I kinda like it here.\r\n");
@@ -1389,20 +2350,18 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 * @param i
 	 * @return
 	 */
-	private boolean chechAreCmdArgsCntOk(String readLine, Integer i) {
-		Integer len = readLine.split(" ", i + 1).length;
+	private boolean chechAreCmdArgsCntOk(LineFramer.Line line, Integer i) {
+		Integer len = line.fields(i + 1);
 		Boolean res = (len == (i + 1));
 
 		if (!res) {
 
-			logsem.acquireUninterruptibly();
-			log.addCtlMsg(csock, "Got invalid args in command: " + readLine
+			log.addCtlMsg(csock, "Got invalid args in command: " + line
 					+ String.format(" (%s ≠ %s)", len, i + 1), Lvl.NORMAL);
-			logsem.release();
 
 			write.print(String.format(
 					"501 EPIC FAIL in arguments (%s =/= %s)\r\n", len, i + 1));
@@ -1413,28 +2372,22 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doAcctCmd(String readLine) {
+	private void doAcctCmd(LineFramer.Line line) {
+		String rl = line.toString();
 
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got 'ACCT' command: " + readLine, Lvl.NORMAL);
-		logsem.release();
+		log.addCtlMsg(csock, "Got 'ACCT' command: " + rl, Lvl.NORMAL);
 
-		if (accnt == null) {
-			notLoggedInErrMsg(readLine);
-		} else {
-			notImplementedMsg(readLine);
-		}
+		notImplementedMsg(rl);
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void notLoggedInErrMsg(String readLine) {
+	private void notLoggedInErrMsg() {
 		if (accnt == null) {
-			write
-					.print("530 I don't talk with strangers. Tell me who you are first!\r\n");
+			write.print(NOTLOGGEDMSG);
 			write.flush();
 		}
 	}
@@ -1460,13 +2413,16 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * 
 	 */
-	private void doQuitCmd(String readLine) {
+	private void doQuitCmd() {
 
-		logsem.acquireUninterruptibly();
 		log.addCtlMsg(csock, "Got QUIT; quitting", Lvl.NORMAL);
-		logsem.release();
+
+		Transfer t = xfr;
+		if (t != null) {
+			t.await();
+		}
 
 		write.print("221 KTHXBYE! (xfrd " + st_transf + "B in " + st_conns
 				+ " data conns)\r\n");
@@ -1476,27 +2432,299 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * 
+	 */
+	private void doNoopCmd() {
+		write.print(NOOPMSG);
+		write.flush();
+
+		log.addCtlMsg(csock, "Got NOOP command", Lvl.NORMAL);
+
+	}
+
+	/**
+	 * 
+	 */
+	private void doFeatCmd() {
+		log.addCtlMsg(csock, "Got 'FEAT' cmd", Lvl.NORMAL);
+
+		write.print(FEATMSG);
+		write.flush();
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doRestCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'REST' cmd: " + arg, Lvl.NORMAL);
+
+		Long m;
+		try {
+			m = Long.parseLong(arg.trim());
+		} catch (NumberFormatException e) {
+			m = -1L;
+		}
+
+		if (m < 0) {
+			write.print("501 REST needs a byte count\r\n");
+		} else if (m > 0 && !isRawType()) {
+			write.print("504 Restart works in TYPE I only\r\n");
+		} else {
+			restpos = m;
+			write.print("350 Restarting at " + m
+					+ ". Send RETR, STOR or APPE to go on\r\n");
+		}
+		write.flush();
+	}
+
+	/**
+	 * 
+	 */
+	private void doAborCmd() {
+		log.addCtlMsg(csock, "Got 'ABOR' cmd", Lvl.NORMAL);
+
+		Transfer t = xfr;
+
+		if (t != null && t.abort()) {
+			t.await();
+
+			log.addXfrMsg(csock, "Aborted " + t.what + " after " + t.done
+					+ "B", Lvl.NORMAL);
+
+			write.print("226 Aborted, data connection closed\r\n");
+		} else {
+			dropDataSocket();
+
+			write.print("226 Nothing to abort\r\n");
+		}
+		write.flush();
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doStatCmd(LineFramer.Line line) {
+		log.addCtlMsg(csock, "Got 'STAT' cmd", Lvl.NORMAL);
+
+		Transfer t = xfr;
+
+		if (t != null) {
+			Long d = t.done;
+
+			if (t.size >= 0) {
+				write.print(String.format(
+						"213 %s: %d of %d bytes (%.1f%%)\r\n", t.what, d,
+						t.size, t.size == 0 ? 100.0 : d * 100.0 / t.size));
+			} else {
+				write.print("213 " + t.what + ": " + d + " bytes\r\n");
+			}
+		} else if (line.fields(2) > 1) {
+			write.print("504 STAT of a path not supported; use LIST\r\n");
+		} else {
+			/* in one piece, so a transfer's reply can't land inside */
+			write.print("211-eftepd status:\r\n Logged in as "
+					+ accnt.getUserName() + "\r\n TYPE: " + currt
+					+ "; STRU: FILE; MODE: STREAM\r\n Transferred "
+					+ st_transf + "B in " + st_conns
+					+ " data conns\r\n211 End\r\n");
+		}
+		write.flush();
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doSiteCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'SITE' cmd: " + arg, Lvl.NORMAL);
+
+		if (arg == null) {
+			write.print("501 SITE what?\r\n");
+			write.flush();
+			return;
+		}
+
+		/* subcommand and its argument */
+		String[] cmd = arg.split(" ", 2);
+
+		if (cmd[0].equalsIgnoreCase("TREE")) {
+			String t = cmd.length == 2 && cmd[1].length() > 0 ? cmd[1] : ".";
+
+			File tgt = getLsTarget(t);
+
+			if (tgt == null) {
+				dropDataSocket();
+				return;
+			}
+
+			sendTree(tgt, "150 Tree of '" + t + "'");
+		} else if (cmd[0].equalsIgnoreCase("CMDSTAT")) {
+			printCmdStats();
+		} else {
+			write.print("504 SITE " + cmd[0] + " not supported\r\n");
+			write.flush();
+		}
+	}
+
+	/**
+	 * Tells the client how often every command was run and how long it took,
+	 * server-wide
+	 */
+	private void printCmdStats() {
+		/* in one piece, so a transfer's reply can't land inside */
+		StringBuilder sb = new StringBuilder(
+				"211-Command calls, rejected, avg. time:\r\n");
+
+		for (CommandRegistry.Command<ClientConnection> c : CMDS.getCommands()) {
+			Long n = c.getCalls();
+
+			sb.append(String.format(" %-4s %8d %6d %10.3f ms\r\n", c
+					.getVerb(), n, c.getRejected(), n == 0 ? 0.0 : c
+					.getNanos()
+					/ 1e6 / n));
+		}
+
+		ListingCache lc = ListingCache.getInstance();
+		FileCache fc = FileCache.getInstance();
+		ReadFanOut fo = ReadFanOut.getInstance();
+		FileHandles fh = FileHandles.getInstance();
+
+		sb.append(" Unknown: " + CMDS.getUnknown() + "\r\n");
+		sb.append(" Listing cache: " + lc.getHits() + " hits, "
+				+ lc.getMisses() + " misses, " + lc.getCount() + " dirs, "
+				+ lc.getBytes() + "B\r\n");
+		sb.append(String.format(
+				" File cache: %d hits, %d misses (%.1f%% hit), %d files, %dB,"
+						+ " %dB served\r\n", fc.getHits(), fc.getMisses(), fc
+						.getHitRatio() * 100, fc.getCount(), fc.getBytes(), fc
+						.getServed()));
+		sb.append(" Shared reads: " + fo.getLoaded() + "B read, "
+				+ fo.getShared() + "B shared, " + fo.getCount() + " files, "
+				+ fo.getHeld() + "B held\r\n");
+		sb.append(" Open files: " + fh.getHits() + " reused, "
+				+ fh.getOpens() + " opened, " + fh.getCount() + " held\r\n");
+		sb.append("211 End\r\n");
+
+		write.print(sb);
+		write.flush();
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doMlsdCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'MLSD' cmd: " + arg, Lvl.NORMAL);
+
+		String t = arg != null && arg.length() > 0 ? arg : ".";
+
+		File tgt = getLsTarget(t);
+
+		if (tgt == null) {
+			dropDataSocket();
+			return;
+		}
+
+		if (!tgt.isDirectory()) {
+			dropDataSocket();
+
+			write.print("501 '" + t + "' is not a directory\r\n");
+			write.flush();
+			return;
+		}
+
+		sendListing(tgt, true, "150 MLSD of '" + t + "'");
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doMlstCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'MLST' cmd: " + arg, Lvl.NORMAL);
+
+		String t = arg != null && arg.length() > 0 ? arg : ".";
+
+		File tgt = getLsTarget(t);
+
+		if (tgt == null) {
+			return;
+		}
+
+		BasicFileAttributes a = DirListing.readAttrs(tgt.toPath());
+
+		if (a == null) {
+			write.print("550 Can't read '" + t + "'\r\n");
+			write.flush();
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder("250- Listing ").append(t)
+				.append("\r\n ");
+		DirListing.appendFacts(sb, a).append(' ').append(
+				tgt.getAbsolutePath()).append("\r\n250 End\r\n");
+
+		write.print(sb);
+		write.flush();
+	}
+
+	/**
+	 * @param line
 	 */
-	private void doNoopCmd(String readLine) {
-		write.print("200 Yay, you're not dead! I'm good too, BTW.\r\n");
+	private void doSizeCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'SIZE' cmd: " + arg, Lvl.NORMAL);
+
+		File tgt = getLsTarget(arg);
+
+		if (tgt == null) {
+			return;
+		}
+
+		BasicFileAttributes a = DirListing.readAttrs(tgt.toPath());
+
+		if (a == null || !a.isRegularFile()) {
+			write.print("550 Not a plain file\r\n");
+		} else if (currt == Type.ASCII && !LINESEP.equals("\r\n")) {
+			write.print("550 SIZE not known in ASCII mode; use TYPE I\r\n");
+		} else {
+			write.print("213 " + a.size() + "\r\n");
+		}
 		write.flush();
+	}
+
+	/**
+	 * @param line
+	 */
+	private void doMdtmCmd(LineFramer.Line line) {
+		String arg = line.arg();
+		log.addCtlMsg(csock, "Got 'MDTM' cmd: " + arg, Lvl.NORMAL);
+
+		File tgt = getLsTarget(arg);
+
+		if (tgt == null) {
+			return;
+		}
 
-		logsem.acquireUninterruptibly();
-		log.addCtlMsg(csock, "Got NOOP command: " + readLine, Lvl.NORMAL);
-		logsem.release();
+		BasicFileAttributes a = DirListing.readAttrs(tgt.toPath());
 
+		if (a == null) {
+			write.print("550 Can't read file\r\n");
+		} else {
+			write.print(DirListing.appendTime(new StringBuilder("213 "),
+					a.lastModifiedTime().toMillis()).append("\r\n"));
+		}
+		write.flush();
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doPassCmd(String readLine) {
+	private void doPassCmd(LineFramer.Line line) {
 
 		if (uname == null) {
-			logsem.acquireUninterruptibly();
 			log.addCtlMsg(csock, "Got PASS before USER : " + uname, Lvl.NOTICE);
-			logsem.release();
 
 			write.print("503 PASS? But I don't know who you are yet!\r\n");
 			write.flush();
@@ -1504,50 +2732,40 @@ public final class ClientConnection implements Runnable {
 			return;
 		}
 
-		if (!chechAreCmdArgsCntOk(readLine, 1)) {
-			logsem.acquireUninterruptibly();
-			log
-					.addCtlMsg(csock, "Malformed PASS line: " + readLine,
-							Lvl.NORMAL);
-			logsem.release();
+		if (!chechAreCmdArgsCntOk(line, 1)) {
+			log.addCtlMsg(csock, "Malformed PASS line: " + line, Lvl.NORMAL);
 
 			return;
 		}
 
-		String[] cmd = readLine.split(" ", 2);
+		String arg = line.arg();
 
 		if (uname != null) {
 			if (accnt != null) {
-				logsem.acquireUninterruptibly();
-				log.addCtlMsg(csock, "Superflous PASS: " + cmd[1], Lvl.NORMAL);
-				logsem.release();
+				log.addCtlMsg(csock, "Superflous PASS: " + arg, Lvl.NORMAL);
 
 				write
 						.print("230 I already know who you are - no need to prove it\r\n");
 				write.flush();
 
-				pass = cmd[1];
+				pass = arg;
 			} else {
 
 				Account acc = smngr.getAccountsSett().getUserAccount(uname);
 
-				if (acc.getPass().compareTo(cmd[1]) == 0) {
+				if (acc.getPass().compareTo(arg) == 0) {
 					accnt = acc;
 					wdir = accnt.getHomeDir().getAbsoluteFile();
 
-					logsem.acquireUninterruptibly();
 					log.addCtlMsg(csock, "User '" + accnt.getUserName()
 							+ "' logged in.", Lvl.NOTICE);
-					logsem.release();
 
-					write.print("230 O HAI, " + cmd[1] + "!");
+					write.print("230 O HAI, " + arg + "!");
 					write.flush();
 
 				} else {
-					logsem.acquireUninterruptibly();
 					log.addCtlMsg(csock, "Invalid PASS for user '" + uname
-							+ "': " + cmd[1], Lvl.WARNING);
-					logsem.release();
+							+ "': " + arg, Lvl.WARNING);
 
 					Integer sleep = 5000;
 					if (smngr.getServerSett().hasProperty("FailLoginDelayMs")) {
@@ -1556,12 +2774,10 @@ public final class ClientConnection implements Runnable {
 						try {
 							sleep = Integer.parseInt(del);
 						} catch (Exception e) {
-							logsem.acquireUninterruptibly();
 							log.addMiscMsg(null,
 									"Invalid setting „FailLoginDelayMs”: "
 											+ e.getLocalizedMessage(),
 									Lvl.ERROR);
-							logsem.release();
 						}
 
 					}
@@ -1583,14 +2799,12 @@ public final class ClientConnection implements Runnable {
 	}
 
 	/**
-	 * @param readLine
+	 * @param line
 	 */
-	private void doUserCmd(String readLine) {
+	private void doUserCmd(LineFramer.Line line) {
 		if (accnt != null) {
-			logsem.acquireUninterruptibly();
-			log.addCtlMsg(csock, "Got USER when alread logged in: " + readLine,
+			log.addCtlMsg(csock, "Got USER when alread logged in: " + line,
 					Lvl.NORMAL);
-			logsem.release();
 
 			write.print("530 I know you already! You won't fool me '"
 					+ accnt.getUserName() + "'!\r\n");
@@ -1598,20 +2812,16 @@ public final class ClientConnection implements Runnable {
 
 		} else {
 
-			String[] cmd = readLine.split(" ", 2);
-
-			if (!chechAreCmdArgsCntOk(readLine, 1)) {
-				logsem.acquireUninterruptibly();
-				log.addCtlMsg(csock, "Malformed line: " + readLine, Lvl.NORMAL);
-				logsem.release();
+			if (!chechAreCmdArgsCntOk(line, 1)) {
+				log.addCtlMsg(csock, "Malformed line: " + line, Lvl.NORMAL);
 
 				return;
 			}
 
-			if (!smngr.getAccountsSett().hasAccount(cmd[1])) {
-				logsem.acquireUninterruptibly();
-				log.addCtlMsg(csock, "Unknown user: " + cmd[1], Lvl.NOTICE);
-				logsem.release();
+			String arg = line.arg();
+
+			if (!smngr.getAccountsSett().hasAccount(arg)) {
+				log.addCtlMsg(csock, "Unknown user: " + arg, Lvl.NOTICE);
 
 				write
 						.print("530 I don't talk with stangers! I don't know you!\r\n");
@@ -1621,12 +2831,10 @@ public final class ClientConnection implements Runnable {
 				// killIt();
 			}
 
-			if ((smngr.getAccountsSett().getUserAccount(cmd[1]).getModifier() & Account.Mods.ACTIVE
+			if ((smngr.getAccountsSett().getUserAccount(arg).getModifier() & Account.Mods.ACTIVE
 					.getMod()) == 0) {
-				logsem.acquireUninterruptibly();
-				log.addCtlMsg(csock, "Disabled user account: " + cmd[1],
+				log.addCtlMsg(csock, "Disabled user account: " + arg,
 						Lvl.NOTICE);
-				logsem.release();
 
 				write
 						.print("530 I know you, but I dont like you. (account disabled)\r\n");
@@ -1636,32 +2844,28 @@ public final class ClientConnection implements Runnable {
 
 			}
 
-			if ((smngr.getAccountsSett().getUserAccount(cmd[1]).getModifier() & Account.Mods.PASSREQ
+			if ((smngr.getAccountsSett().getUserAccount(arg).getModifier() & Account.Mods.PASSREQ
 					.getMod()) != 0) {
 
-				logsem.acquireUninterruptibly();
-				log.addCtlMsg(csock, "Got USER: " + readLine, Lvl.NORMAL);
-				logsem.release();
+				log.addCtlMsg(csock, "Got USER: " + arg, Lvl.NORMAL);
 
-				write.print("331 Is it really you, " + cmd[1]
+				write.print("331 Is it really you, " + arg
 						+ "? Prove it!\r\n");
 				write.flush();
 
 			} else {
 
-				accnt = smngr.getAccountsSett().getUserAccount(cmd[1]);
+				accnt = smngr.getAccountsSett().getUserAccount(arg);
 
-				logsem.acquireUninterruptibly();
 				log.addCtlMsg(csock, "User '" + accnt.getUserName()
 						+ "' logged in.", Lvl.NOTICE);
-				logsem.release();
 
 				write.print("230 O HAI, " + accnt.getUserName() + "!\r\n");
 				write.flush();
 
 			}
 
-			uname = cmd[1];
+			uname = arg;
 
 		}
 
@@ -1682,8 +2886,8 @@ public final class ClientConnection implements Runnable {
 
 		write.print(String.format("220-%s ver. %s @ %s%s\r\n", smngr
 				.getServerSett().getProperty("SERVERNAME"), smngr
-				.getServerSett().getProperty("SERVERVERSION"), csock
-				.getLocalAddress().getHostName(), hm));
+				.getServerSett().getProperty("SERVERVERSION"), HostNameCache
+				.getInstance().getName(csock.getLocalAddress()), hm));
 
 		// -----
 		if (smngr.getServerSett().hasProperty("HelloFile")) {
@@ -1696,32 +2900,51 @@ public final class ClientConnection implements Runnable {
 
 			try {
 				if (hf.exists() && hf.canRead()) {
-					BufferedReader br = new BufferedReader(new FileReader(hf));
-					String ln;
-
-					while ((ln = br.readLine()) != null) {
-						write.print("220-" + ln + "\r\n");
-					}
-
+					write.print(getHelloFile(hf));
 				} else {
-					logsem.acquireUninterruptibly();
 					log.addMiscMsg(null, "No access to hello file: "
 							+ hf.getAbsolutePath(), Lvl.ERROR);
-					logsem.release();
 				}
 
 			} catch (IOException e) {
-				logsem.acquireUninterruptibly();
 				log.addMiscMsg(null, "Error reading hello file ("
 						+ hf.getAbsolutePath() + "): "
 						+ e.getLocalizedMessage(), Lvl.ERROR);
-				logsem.release();
 			}
 
 		}
 
-		write.print("220 Please login NAO!\r\n");
+		write.print(HELLOENDMSG);
 		write.flush();
 
 	}
+
+	/**
+	 * @return lines of hf as 220 continuation lines, read only if hf has
+	 *         changed since the last time
+	 */
+	private static synchronized byte[] getHelloFile(File hf)
+			throws IOException {
+		String key = hf.getAbsolutePath() + ":" + hf.lastModified() + ":"
+				+ hf.length();
+
+		if (!key.equals(hellokey)) {
+			BufferedReader br = new BufferedReader(new FileReader(hf));
+			StringBuilder sb = new StringBuilder();
+			String ln;
+
+			try {
+				while ((ln = br.readLine()) != null) {
+					sb.append("220-").append(ln).append("\r\n");
+				}
+			} finally {
+				br.close();
+			}
+
+			hellofile = ReplyWriter.encode(sb.toString());
+			hellokey = key;
+		}
+
+		return hellofile;
+	}
 }
@@ -21,101 +21,170 @@
  */
 package server;
 
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logging.Logger;
+import logging.Logger.Lvl;
+import settings.SettingsManager;
 
 /**
+ * Runs client sessions on an executor chosen by the „SessionExecutor”
+ * setting:
+ * <ul>
+ * <li><code>cached</code> (default) – a thread per session, idle threads are
+ * reused</li>
+ * <li><code>pool</code> – „SessionPoolSize” pre-started threads and a queue
+ * of „SessionQueueSize” waiting sessions; beyond that clients are
+ * refused</li>
+ * <li><code>virtual</code> – a virtual thread per session (needs a JVM with
+ * virtual threads; falls back to <code>cached</code>)</li>
+ * </ul>
+ * Sessions are started as soon as they are added and unregister themselves
+ * when they end.
+ * 
  * @author athantor
  * 
  */
-public class ClientManager extends Thread {
+public class ClientManager {
 
-	private volatile CopyOnWriteArrayList<Thread> clients;
-	private volatile LinkedBlockingQueue<Thread> newcts;
-	private volatile Boolean exit = false;
+	private final ConcurrentHashMap<Long, Runnable> clients;
+	private final AtomicLong nextid = new AtomicLong(0);
+	private final AtomicInteger clientscnt = new AtomicInteger(0);
+	private final ExecutorService exec;
+	private final Logger log;
 
 	/**
-	 * @param exit
-	 *            the exit to set
+	 * @param sm
+	 *            settings
+	 * @param l
+	 *            logger
 	 */
-	public synchronized void setExit(Boolean exit) {
-		this.exit = exit;
-	}
+	public ClientManager(SettingsManager sm, Logger l) {
+		clients = new ConcurrentHashMap<Long, Runnable>();
+		log = l;
 
-	/**
-	 * 
-	 */
-	public ClientManager() {
-		clients = new CopyOnWriteArrayList<Thread>();
-		newcts = new LinkedBlockingQueue<Thread>();
-		exit = false;
+		String mode = "cached";
+		if (sm.getServerSett().hasProperty("SessionExecutor")) {
+			mode = sm.getServerSett().getProperty("SessionExecutor").trim();
+		}
+
+		exec = makeExecutor(sm, mode);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see java.lang.Runnable#run()
-	 */
-	@Override
-	public void run() {
-		while (!exit) {
+	private ExecutorService makeExecutor(SettingsManager sm, String mode) {
+		if (mode.equalsIgnoreCase("pool")) {
+			Integer size = getIntSetting(sm, "SessionPoolSize", 64);
+			Integer qsize = getIntSetting(sm, "SessionQueueSize", 256);
 
-			removeDead();
-			addNew();
+			ThreadPoolExecutor tpe = new ThreadPoolExecutor(size, size, 0L,
+					TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+							qsize), new SessionThreadFactory());
+			tpe.prestartAllCoreThreads();
 
+			log.addMiscMsg(null, String.format(
+					"Session executor: pool of %d threads, queue of %d", size,
+					qsize), Lvl.NOTICE);
+
+			return tpe;
+		} else if (mode.equalsIgnoreCase("virtual")) {
 			try {
-				sleep(1000);
-			} catch (InterruptedException e) {
+				Method m = Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor");
+
+				log.addMiscMsg(null, "Session executor: virtual threads",
+						Lvl.NOTICE);
+
+				return (ExecutorService) m.invoke(null);
+			} catch (Exception e) {
+				log.addMiscMsg(null,
+						"Virtual threads not available; using cached threads: "
+								+ e, Lvl.WARNING);
 			}
+		} else if (!mode.equalsIgnoreCase("cached")) {
+			log.addMiscMsg(null, "Invalid setting „SessionExecutor”: " + mode,
+					Lvl.ERROR);
 		}
 
+		return Executors.newCachedThreadPool(new SessionThreadFactory());
 	}
 
-	/**
-	 * 
-	 */
-	private synchronized void addNew() {
-		while (!newcts.isEmpty()) {
-			Thread t = newcts.poll();
-			t.start();
-			clients.add(t);
+	private Integer getIntSetting(SettingsManager sm, String key, Integer def) {
+		if (sm.getServerSett().hasProperty(key)) {
+			try {
+				Integer v = Integer.parseInt(sm.getServerSett().getProperty(key)
+						.trim());
+				if (v <= 0) {
+					throw new IllegalArgumentException(key + " <= 0");
+				}
+
+				return v;
+			} catch (Exception e) {
+				log.addMiscMsg(null, "Invalid setting „" + key + "”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
 		}
 
+		return def;
 	}
 
 	/**
+	 * Starts the session
 	 * 
+	 * @param t
+	 *            the session
+	 * @return false if the executor can't take more sessions
 	 */
-	private synchronized void removeDead() {
+	public Boolean addClient(final Runnable t) {
+		final Long id = nextid.incrementAndGet();
 
-		CopyOnWriteArrayList<Thread> old = new CopyOnWriteArrayList<Thread>();
+		clients.put(id, t);
+		clientscnt.incrementAndGet();
 
-		for (Thread t : clients) {
-			if (!t.isAlive()) {
-				old.add(t);
-			}
-		}
+		try {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						t.run();
+					} finally {
+						removeClient(id);
+					}
+				}
+			});
 
-		if (!old.isEmpty()) {
-			clients.removeAll(old);
+			return true;
+		} catch (RejectedExecutionException e) {
+			removeClient(id);
+			return false;
 		}
-
 	}
 
-	public synchronized Boolean addClient(Thread t) {
-		try {
-			newcts.put(t);
-			return true;
-		} catch (InterruptedException e) {
-			return false;
+	private void removeClient(Long id) {
+		if (clients.remove(id) != null) {
+			clientscnt.decrementAndGet();
 		}
 	}
 
-	public synchronized Boolean addClient(Runnable t) {
-		return addClient(new Thread(t));
+	public Integer getClientsCount() {
+		return clientscnt.get();
 	}
 
-	public synchronized Integer getClientsCount() {
-		return clients.size() + newcts.size();
+	private static final class SessionThreadFactory implements ThreadFactory {
+		private final AtomicInteger cnt = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, "eftepd-session-" + cnt.incrementAndGet());
+		}
 	}
 }
@@ -0,0 +1,277 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Table of control connection commands, looked up by verb.
+ * <p>
+ * A verb is 3 or 4 ASCII letters, so it's packed case-insensitively into an
+ * int straight from the command line and found in an open-addressed table:
+ * a lookup costs the same for every verb, known or not, and allocates
+ * nothing. Handlers get the line as it lies in the input buffer and decode
+ * only the argument, if they take one. Every command counts its calls,
+ * rejections and the time its handler took.
+ *
+ * @param <S>
+ *            session the handlers run on
+ *
+ * @author athantor
+ *
+ */
+final class CommandRegistry<S> {
+
+	/**
+	 * Does the work of one command
+	 */
+	interface Handler<S> {
+		/**
+		 * @param line
+		 *            the command line, valid only until the handler returns
+		 */
+		void handle(S sess, LineFramer.Line line);
+	}
+
+	/**
+	 * One registered verb with what's known about it
+	 */
+	static final class Command<S> {
+		private final String verb;
+		private final Boolean login;
+		private final Integer args;
+		private final Boolean data;
+		private final Boolean inxfr;
+		private final Handler<S> handler;
+
+		private final AtomicLong calls = new AtomicLong(0);
+		private final AtomicLong rejected = new AtomicLong(0);
+		private final AtomicLong nanos = new AtomicLong(0);
+
+		private Command(String v, Boolean l, Integer a, Boolean d,
+				Boolean x, Handler<S> h) {
+			verb = v;
+			login = l;
+			args = a;
+			data = d;
+			inxfr = x;
+			handler = h;
+		}
+
+		String getVerb() {
+			return verb;
+		}
+
+		/**
+		 * @return true if only a logged in user may run it
+		 */
+		Boolean needsLogin() {
+			return login;
+		}
+
+		/**
+		 * @return exact number of arguments, or null if the handler checks
+		 *         them itself
+		 */
+		Integer getArgs() {
+			return args;
+		}
+
+		/**
+		 * @return true if it uses the data connection
+		 */
+		Boolean usesData() {
+			return data;
+		}
+
+		/**
+		 * @return true if it may run while a transfer is going on
+		 */
+		Boolean runsDuringTransfer() {
+			return inxfr;
+		}
+
+		/**
+		 * Runs the handler and counts the call
+		 */
+		void run(S sess, LineFramer.Line line) {
+			long t = System.nanoTime();
+
+			try {
+				handler.handle(sess, line);
+			} finally {
+				nanos.addAndGet(System.nanoTime() - t);
+				calls.incrementAndGet();
+			}
+		}
+
+		/**
+		 * Counts a call turned down before the handler was run
+		 */
+		void reject() {
+			rejected.incrementAndGet();
+		}
+
+		Long getCalls() {
+			return calls.get();
+		}
+
+		Long getRejected() {
+			return rejected.get();
+		}
+
+		/**
+		 * @return total time spent in the handler, in ns
+		 */
+		Long getNanos() {
+			return nanos.get();
+		}
+	}
+
+	private static final Integer BITS = 6;
+
+	/* packed verbs, 0 for a free slot; ints so a lookup doesn't box */
+	private final int[] keys = new int[1 << BITS];
+	@SuppressWarnings("unchecked")
+	private final Command<S>[] cmds = (Command<S>[]) new Command<?>[1 << BITS];
+	private final ArrayList<Command<S>> order = new ArrayList<Command<S>>();
+	private final AtomicLong unknown = new AtomicLong(0);
+
+	/**
+	 * Registers a verb
+	 *
+	 * @param verb
+	 *            3 or 4 letters
+	 * @param login
+	 *            true if only a logged in user may run it
+	 * @param args
+	 *            exact number of arguments, or null if the handler checks
+	 *            them itself
+	 * @param data
+	 *            true if it uses the data connection
+	 * @param inxfr
+	 *            true if it may run while a transfer is going on
+	 */
+	synchronized void add(String verb, Boolean login, Integer args,
+			Boolean data, Boolean inxfr, Handler<S> h) {
+		int k = pack(verb);
+
+		if (k == 0 || verb.length() != 4 && verb.length() != 3) {
+			throw new IllegalArgumentException("bad verb: " + verb);
+		}
+
+		if (order.size() >= keys.length / 2) {
+			throw new IllegalStateException("registry full");
+		}
+
+		int i = slot(k);
+		while (keys[i] != 0) {
+			if (keys[i] == k) {
+				throw new IllegalArgumentException("verb registered twice: "
+						+ verb);
+			}
+
+			i = (i + 1) & (keys.length - 1);
+		}
+
+		Command<S> c = new Command<S>(verb.toUpperCase(), login, args, data,
+				inxfr, h);
+		keys[i] = k;
+		cmds[i] = c;
+		order.add(c);
+	}
+
+	/**
+	 * @param line
+	 *            command line
+	 * @return command for the line's verb, or null if there's no such
+	 */
+	Command<S> lookup(CharSequence line) {
+		int k = pack(line);
+
+		if (k != 0) {
+			int i = slot(k);
+			while (keys[i] != 0) {
+				if (keys[i] == k) {
+					return cmds[i];
+				}
+
+				i = (i + 1) & (keys.length - 1);
+			}
+		}
+
+		unknown.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * @return commands in order of registration
+	 */
+	synchronized List<Command<S>> getCommands() {
+		return Collections.unmodifiableList(new ArrayList<Command<S>>(order));
+	}
+
+	/**
+	 * @return number of lines with a verb nobody registered
+	 */
+	Long getUnknown() {
+		return unknown.get();
+	}
+
+	/**
+	 * Packs the verb of a line, upper case, one byte per letter
+	 *
+	 * @return 0 if the line doesn't start with a verb
+	 */
+	static int pack(CharSequence line) {
+		int k = 0, i = 0;
+
+		for (; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (c == ' ') {
+				break;
+			}
+
+			if (c >= 'a' && c <= 'z') {
+				c -= 'a' - 'A';
+			} else if (c < 'A' || c > 'Z') {
+				return 0;
+			}
+
+			if (i == 4) {
+				return 0;
+			}
+
+			k = (k << 8) | c;
+		}
+
+		return i < 3 ? 0 : k;
+	}
+
+	private int slot(int k) {
+		return (k * 0x9E3779B9) >>> (32 - BITS);
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Line end translation for ASCII mode transfers. Works on bytes, so
+ * multibyte characters pass through untouched, and remembers a half-seen
+ * line end, so a CR LF split between two blocks is still translated.
+ * <p>
+ * One codec handles one direction of one transfer.
+ *
+ * @author athantor
+ *
+ */
+final class CrlfCodec {
+
+	static final String CRLF = "\r\n";
+
+	/**
+	 * Most bytes written for one byte read: a held back first byte of the
+	 * line end plus a whole replacement
+	 */
+	private static final Integer MAXOUT = 3;
+
+	private final byte[] from, to;
+	private Boolean held = false;
+
+	private CrlfCodec(String f, String t) {
+		if (f.length() < 1 || f.length() > 2 || t.length() < 1
+				|| t.length() > 2) {
+			throw new IllegalArgumentException("Unsupported line separator");
+		}
+
+		from = f.getBytes();
+		to = t.getBytes();
+	}
+
+	/**
+	 * @param sep
+	 *            local line separator
+	 * @return codec for data going to the client
+	 */
+	static CrlfCodec toNet(String sep) {
+		return new CrlfCodec(sep, CRLF);
+	}
+
+	/**
+	 * @param sep
+	 *            local line separator
+	 * @return codec for data coming from the client
+	 */
+	static CrlfCodec fromNet(String sep) {
+		return new CrlfCodec(CRLF, sep);
+	}
+
+	/**
+	 * @return true if the data doesn't have to be touched at all
+	 */
+	Boolean isIdentity() {
+		return from.length == to.length && from[0] == to[0]
+				&& from[from.length - 1] == to[to.length - 1];
+	}
+
+	/**
+	 * @param len
+	 *            size of the input blocks
+	 * @return size of an output buffer big enough for a whole input block
+	 */
+	static Integer outSize(Integer len) {
+		return len * 2 + MAXOUT;
+	}
+
+	/**
+	 * Translates as much of <code>src</code> as fits into <code>dst</code>.
+	 * Both buffers are left positioned after what was read and written.
+	 *
+	 * @param src
+	 *            data to translate
+	 * @param dst
+	 *            where to put it
+	 */
+	void convert(ByteBuffer src, ByteBuffer dst) {
+		if (src.hasArray() && dst.hasArray()) {
+			convertArrays(src, dst);
+			return;
+		}
+
+		final byte f0 = from[0], t0 = to[0];
+		final boolean pair = from.length == 2, tpair = to.length == 2;
+		final byte f1 = from[from.length - 1], t1 = to[to.length - 1];
+		boolean h = held;
+
+		while (src.hasRemaining() && dst.remaining() >= MAXOUT) {
+			byte c = src.get();
+
+			if (h) {
+				h = false;
+				if (c == f1) {
+					dst.put(t0);
+					if (tpair) {
+						dst.put(t1);
+					}
+					continue;
+				}
+				dst.put(f0);
+			}
+
+			if (c == f0) {
+				if (pair) {
+					h = true;
+				} else {
+					dst.put(t0);
+					if (tpair) {
+						dst.put(t1);
+					}
+				}
+			} else {
+				dst.put(c);
+			}
+		}
+
+		held = h;
+	}
+
+	private void convertArrays(ByteBuffer src, ByteBuffer dst) {
+		final byte f0 = from[0], t0 = to[0];
+		final boolean pair = from.length == 2, tpair = to.length == 2;
+		final byte f1 = from[from.length - 1], t1 = to[to.length - 1];
+		boolean h = held;
+
+		final byte[] in = src.array(), out = dst.array();
+		int r = src.arrayOffset() + src.position();
+		final int rend = src.arrayOffset() + src.limit();
+		int w = dst.arrayOffset() + dst.position();
+		final int wend = dst.arrayOffset() + dst.limit() - MAXOUT;
+
+		while (r < rend && w <= wend) {
+			byte c = in[r++];
+
+			if (h) {
+				h = false;
+				if (c == f1) {
+					out[w++] = t0;
+					if (tpair) {
+						out[w++] = t1;
+					}
+					continue;
+				}
+				out[w++] = f0;
+			}
+
+			if (c == f0) {
+				if (pair) {
+					h = true;
+				} else {
+					out[w++] = t0;
+					if (tpair) {
+						out[w++] = t1;
+					}
+				}
+			} else {
+				out[w++] = c;
+			}
+		}
+
+		src.position(r - src.arrayOffset());
+		dst.position(w - dst.arrayOffset());
+		held = h;
+	}
+
+	/**
+	 * Writes out a byte held back at the end of the data
+	 *
+	 * @param dst
+	 *            where to put it; needs room for one byte
+	 */
+	void finish(ByteBuffer dst) {
+		if (held) {
+			dst.put(from[0]);
+			held = false;
+		}
+	}
+}
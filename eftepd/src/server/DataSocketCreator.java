@@ -17,124 +17,137 @@
  */
 
 /**
- * 
+ *
  */
 package server;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.Semaphore;
-
-import logging.Logger;
-import logging.Logger.Lvl;
-import settings.SettingsManager;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
+ * Lease of a passive port for one data connection. The connection is
+ * accepted by {@link PassiveAcceptor} and handed over through a future, so
+ * the session wakes up as soon as the client connects.
+ *
  * @author athantor
- * 
+ *
  */
-public final class DataSocketCreator extends Thread {
+public final class DataSocketCreator {
 
-	private ServerSocket ss;
-	private volatile Socket ds = null;
-	private volatile SettingsManager smngr;
-	private volatile Status st;
-	private Exception exc;
-	private volatile Logger log;
+	private final PassiveAcceptor acc;
+	private final CompletableFuture<Socket> ds = new CompletableFuture<Socket>();
 
-	private Semaphore logsem;
+	/* owned by the acceptor */
+	Integer port = null;
+	ServerSocketChannel ssc = null;
+	InetAddress peer = null;
+	Long deadline = 0L;
 
-	public enum Status {
-		NOTSTARTED, PREPD, WAITNIG, FINISHED, ERROR
+	/**
+	 *
+	 */
+	public DataSocketCreator(PassiveAcceptor a) {
+		acc = a;
 	}
 
 	/**
-	 * 
+	 * Leases a port; only the client on the other end of the control
+	 * connection may connect to it
+	 *
+	 * @param csock
+	 *            control connection
+	 * @return address to tell the client
 	 */
-	public DataSocketCreator(SettingsManager sm, Logger l) {
-		smngr = sm;
-		log = l;
-
-		logsem = new Semaphore(1, true);
-
-		st = Status.NOTSTARTED;
+	public InetSocketAddress prepare(Socket csock) throws IOException {
 		try {
-			ss = new ServerSocket();
+			return acc.lease(this, csock);
 		} catch (IOException e) {
-			st = Status.ERROR;
-			exc = e;
-			return;
-		}
-	}
-
-	public InetSocketAddress prepare() throws Exception {
-		try {
-			if (smngr.getServerSett().hasProperty("BindAddress")) {
-				String addr = smngr.getServerSett().getProperty("BindAddress");
-
-				ss.bind(new InetSocketAddress(addr, 0));
-
-			} else {
-				ss.bind(new InetSocketAddress(0));
-			}
-
-			ss.setSoTimeout(0);
-		} catch (Exception e) {
-			st = Status.ERROR;
+			failed(e);
 			throw e;
 		}
-
-		st = Status.PREPD;
-		return (InetSocketAddress) ss.getLocalSocketAddress();
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see java.lang.Runnable#run()
+	/**
+	 * Gives the port back, or closes the connection if the client has
+	 * already connected
 	 */
-	@Override
-	public void run() {
-		st = Status.WAITNIG;
-
-		try {
-			ds = ss.accept();
-
-			st = Status.FINISHED;
-
-			logsem.acquireUninterruptibly();
-			log.addConnectionMsg(ds, "data conn", Lvl.NORMAL);
-			logsem.release();
-
-			return;
-		} catch (IOException e) {
-			st = Status.ERROR;
-			exc = e;
-			return;
+	public void cancel() {
+		if (!acc.release(this)) {
+			ds.thenAccept(new Consumer<Socket>() {
+				@Override
+				public void accept(Socket s) {
+					try {
+						s.close();
+					} catch (IOException e) {
+					}
+				}
+			});
 		}
 	}
 
 	/**
-	 * @return the ds
+	 * Stops a wait in {@link #getDataSocket()} from another thread, and gives
+	 * the port back
 	 */
-	public synchronized Socket getDataSocket() {
-		return ds;
+	public void abort() {
+		failed(new InterruptedIOException("aborted"));
+		cancel();
 	}
 
-	/**
-	 * @return the st
-	 */
-	public synchronized Status getStatus() {
-		return st;
+	void accepted(Socket s) {
+		if (!ds.complete(s)) {
+			try {
+				s.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	void failed(Exception e) {
+		ds.completeExceptionally(e);
 	}
 
 	/**
-	 * @return the e
+	 * Waits for the client to connect, but not past the lease's deadline
+	 *
+	 * @return the data connection
+	 * @throws IOException
+	 *             if nobody connected in time or the lease failed
 	 */
-	public synchronized Exception getExc() {
-		return exc;
+	public Socket getDataSocket() throws IOException {
+		try {
+			try {
+				return ds.get(Math.max(0L, deadline
+						- System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (acc.release(this)) {
+					throw new SocketTimeoutException(
+							"nobody connected in time");
+				}
+
+				/* the acceptor took the client just now; it's on its way */
+				return ds.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			cancel();
+			throw new InterruptedIOException("interrupted");
+		}
 	}
 
 }
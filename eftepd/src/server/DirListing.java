@@ -0,0 +1,401 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * <code>ls -l</code> style (LIST) or RFC 3659 (MLSD) listing produced while
+ * it's being sent. Entries come from a {@link DirectoryStream} and every one
+ * costs a single attribute read, so a directory of any size is listed in
+ * constant memory.
+ * <p>
+ * {@link #prefetch()} may be called on another thread before
+ * {@link #writeTo(Writer, StringBuilder, Integer)}, to have the first part ready when the data
+ * connection comes.
+ *
+ * @author athantor
+ *
+ */
+final class DirListing implements Closeable {
+
+	private static final Integer HEADCHARS = 64 * 1024;
+
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr",
+			"May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private static final Boolean POSIX = FileSystems.getDefault()
+			.supportedFileAttributeViews().contains("posix");
+
+	/**
+	 * MLST facts given for every entry
+	 */
+	static final String MLSTFACTS = "type*;size*;modify*;perm*;UNIX.mode*;";
+
+	private final File tgt;
+	private final Boolean mlsd;
+	private final DirectoryStream<Path> ds;
+	private final Iterator<Path> it;
+	private final StringBuilder head = new StringBuilder();
+	private final ZoneId zone = ZoneId.systemDefault();
+	private final Integer year;
+	private Boolean single;
+	private IOException err = null;
+
+	/**
+	 * @param t
+	 *            directory to list, or a single file
+	 * @param m
+	 *            true for MLSD format
+	 * @throws IOException
+	 *             if the directory can't be opened
+	 */
+	DirListing(File t, Boolean m) throws IOException {
+		tgt = t;
+		mlsd = m;
+		year = LocalDateTime.now(zone).getYear();
+
+		if (t.isDirectory()) {
+			ds = Files.newDirectoryStream(t.toPath());
+			it = ds.iterator();
+			single = false;
+		} else {
+			ds = null;
+			it = null;
+			single = true;
+		}
+	}
+
+	/**
+	 * Renders the first part of the listing
+	 */
+	void prefetch() {
+		while (head.length() < HEADCHARS && next(head)) {
+		}
+	}
+
+	/**
+	 * Writes the whole listing; the writer isn't flushed
+	 *
+	 * @param tee
+	 *            gets a copy of what's written, as long as it stays under
+	 *            teemax characters; may be null
+	 * @return number of characters written
+	 * @throws IOException
+	 *             if writing failed
+	 */
+	Long writeTo(Writer w, StringBuilder tee, Integer teemax)
+			throws IOException {
+		Long ctr = (long) head.length();
+		w.append(head);
+		if (tee != null && head.length() <= teemax) {
+			tee.append(head);
+		}
+		head.setLength(0);
+
+		StringBuilder sb = new StringBuilder(256);
+		while (next(sb)) {
+			w.append(sb);
+			ctr += sb.length();
+			if (tee != null && tee.length() + sb.length() <= teemax) {
+				tee.append(sb);
+			}
+			sb.setLength(0);
+		}
+
+		return ctr;
+	}
+
+	/**
+	 * @return error which cut the listing short, or null
+	 */
+	IOException getError() {
+		return err;
+	}
+
+	private Boolean next(StringBuilder sb) {
+		if (single) {
+			single = false;
+			appendEntry(sb, tgt.toPath(), tgt.getAbsolutePath());
+			return true;
+		}
+
+		if (it == null || err != null) {
+			return false;
+		}
+
+		try {
+			while (it.hasNext()) {
+				Path p = it.next();
+
+				if (appendEntry(sb, p, p.getFileName().toString())) {
+					return true;
+				}
+			}
+		} catch (DirectoryIteratorException e) {
+			err = e.getCause();
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return false if the entry is gone or can't be read
+	 */
+	private Boolean appendEntry(StringBuilder sb, Path p, String name) {
+		BasicFileAttributes a = readAttrs(p);
+
+		if (a == null) {
+			return false;
+		}
+
+		if (mlsd) {
+			appendFacts(sb, a).append(' ').append(name).append("\r\n");
+		} else {
+			appendLs(sb, p, a, name, zone, year);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Appends one <code>ls -l</code> line
+	 *
+	 * @param year
+	 *            current year in zone; older entries show the year instead
+	 *            of the time
+	 */
+	static void appendLs(StringBuilder sb, Path p, BasicFileAttributes a,
+			String name, ZoneId zone, Integer year) {
+		appendRights(sb, p, a);
+		sb.append(" 0 unknown unknown ");
+
+		String sz = String.valueOf(a.size());
+		for (int i = sz.length(); i < 12; i++) {
+			sb.append(' ');
+		}
+		sb.append(sz).append(' ');
+
+		LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(a
+				.lastModifiedTime().toMillis()), zone);
+
+		sb.append(MONTHS[d.getMonthValue() - 1]).append(' ');
+		append2(sb, d.getDayOfMonth()).append(' ');
+
+		if (d.getYear() != year) {
+			String y = String.valueOf(d.getYear());
+			for (int i = y.length(); i < 5; i++) {
+				sb.append(' ');
+			}
+			sb.append(y);
+		} else {
+			append2(sb, d.getHour()).append(':');
+			append2(sb, d.getMinute());
+		}
+
+		sb.append(' ').append(name).append("\r\n");
+	}
+
+	/**
+	 * Reads what a listing needs in one go; a broken link is described
+	 * itself
+	 *
+	 * @return null if p can't be read
+	 */
+	static BasicFileAttributes readAttrs(Path p) {
+		try {
+			return readAttrs(p, new LinkOption[0]);
+		} catch (IOException e) {
+			try {
+				return readAttrs(p, LinkOption.NOFOLLOW_LINKS);
+			} catch (IOException e1) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #readAttrs(Path)}, but a link is never followed
+	 *
+	 * @return null if p can't be read
+	 */
+	static BasicFileAttributes readLinkAttrs(Path p) {
+		try {
+			return readAttrs(p, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static BasicFileAttributes readAttrs(Path p, LinkOption... lo)
+			throws IOException {
+		if (POSIX) {
+			return Files.readAttributes(p, PosixFileAttributes.class, lo);
+		}
+
+		return Files.readAttributes(p, BasicFileAttributes.class, lo);
+	}
+
+	/**
+	 * Appends the RFC 3659 facts of an entry, each followed by ';'. Rights
+	 * in „perm” are taken from the owner's mode bits, the server being
+	 * expected to own what it serves.
+	 */
+	static StringBuilder appendFacts(StringBuilder sb, BasicFileAttributes a) {
+		Set<PosixFilePermission> pr = null;
+		if (a instanceof PosixFileAttributes) {
+			pr = ((PosixFileAttributes) a).permissions();
+		}
+
+		Boolean r = pr == null || pr.contains(PosixFilePermission.OWNER_READ);
+		Boolean w = pr == null || pr.contains(PosixFilePermission.OWNER_WRITE);
+		Boolean x = pr == null
+				|| pr.contains(PosixFilePermission.OWNER_EXECUTE);
+
+		if (a.isDirectory()) {
+			sb.append("type=dir;");
+		} else if (a.isRegularFile()) {
+			sb.append("type=file;");
+		} else {
+			sb.append("type=OS.unix=")
+					.append(a.isSymbolicLink() ? "slink" : "other").append(';');
+		}
+
+		sb.append("size=").append(a.size()).append(';');
+		sb.append("modify=");
+		appendTime(sb, a.lastModifiedTime().toMillis()).append(';');
+
+		sb.append("perm=");
+		if (a.isDirectory()) {
+			if (r && x) {
+				sb.append("el");
+			}
+			if (w && x) {
+				sb.append('c');
+			}
+		} else if (r) {
+			sb.append('r');
+		}
+		if (!a.isDirectory() && w) {
+			sb.append('w');
+		}
+		sb.append(';');
+
+		if (pr != null) {
+			Integer m = 0;
+			for (PosixFilePermission pp : pr) {
+				m |= 0400 >> pp.ordinal();
+			}
+
+			sb.append("UNIX.mode=0").append(Integer.toOctalString(m)).append(
+					';');
+		}
+
+		return sb;
+	}
+
+	/**
+	 * Appends time as <code>YYYYMMDDHHMMSS</code> in UTC
+	 */
+	static StringBuilder appendTime(StringBuilder sb, Long ms) {
+		LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(ms),
+				ZoneOffset.UTC);
+
+		sb.append(d.getYear());
+		append2(sb, d.getMonthValue());
+		append2(sb, d.getDayOfMonth());
+		append2(sb, d.getHour());
+		append2(sb, d.getMinute());
+		return append2(sb, d.getSecond());
+	}
+
+	private static void appendRights(StringBuilder sb, Path p,
+			BasicFileAttributes a) {
+		if (a.isDirectory()) {
+			sb.append('d');
+		} else if (a.isSymbolicLink()) {
+			sb.append('l');
+		} else {
+			sb.append('-');
+		}
+
+		if (a instanceof PosixFileAttributes) {
+			Set<PosixFilePermission> pr = ((PosixFileAttributes) a)
+					.permissions();
+
+			sb.append(pr.contains(PosixFilePermission.OWNER_READ) ? 'r' : '-');
+			sb.append(pr.contains(PosixFilePermission.OWNER_WRITE) ? 'w' : '-');
+			sb.append(pr.contains(PosixFilePermission.OWNER_EXECUTE) ? 'x'
+					: '-');
+			sb.append(pr.contains(PosixFilePermission.GROUP_READ) ? 'r' : '-');
+			sb.append(pr.contains(PosixFilePermission.GROUP_WRITE) ? 'w' : '-');
+			sb.append(pr.contains(PosixFilePermission.GROUP_EXECUTE) ? 'x'
+					: '-');
+			sb.append(pr.contains(PosixFilePermission.OTHERS_READ) ? 'r' : '-');
+			sb.append(pr.contains(PosixFilePermission.OTHERS_WRITE) ? 'w'
+					: '-');
+			sb.append(pr.contains(PosixFilePermission.OTHERS_EXECUTE) ? 'x'
+					: '-');
+		} else {
+			sb.append(Files.isReadable(p) ? 'r' : '-');
+			sb.append(Files.isWritable(p) ? 'w' : '-');
+			sb.append(Files.isExecutable(p) ? 'x' : '-');
+			sb.append("------");
+		}
+	}
+
+	private static StringBuilder append2(StringBuilder sb, Integer v) {
+		if (v < 10) {
+			sb.append('0');
+		}
+
+		return sb.append(v);
+	}
+
+	@Override
+	public void close() {
+		if (ds != null) {
+			try {
+				ds.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
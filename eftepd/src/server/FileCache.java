@@ -0,0 +1,377 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contents of often downloaded files, kept in direct buffers outside the
+ * heap, keyed by canonical path and checked against the file's mtime and
+ * size on every hit. Least recently used files go first when the byte budget
+ * is exceeded.
+ * <p>
+ * A file is admitted only when it's asked for a second time while its path
+ * is still among the {@link #GHOSTS} last missed ones, so a single pass over
+ * a big tree doesn't wash the hot files out. A file is copied, not mapped: a
+ * client gets the snapshot it started with, even if the file is rewritten
+ * meanwhile.
+ * <p>
+ * An admitted file is read in the background, one file at a time and once
+ * however many downloads ask for it meanwhile; they are all sent from disk
+ * until it's in.
+ * <p>
+ * Off by default; the budget counts against the JVM's direct memory limit.
+ *
+ * @author athantor
+ *
+ */
+public final class FileCache {
+
+	private static volatile FileCache instance = null;
+
+	private static final Integer GHOSTS = 4096;
+
+	private static final ExecutorService FILLER;
+
+	static {
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(1, 1, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "eftepd-fcache");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		tpe.allowCoreThreadTimeOut(true);
+
+		FILLER = tpe;
+	}
+
+	private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private final LinkedHashMap<String, Boolean> seen = new LinkedHashMap<String, Boolean>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+			return size() > GHOSTS;
+		}
+	};
+	/* files being read in, by key */
+	private final HashMap<String, CompletableFuture<Void>> fills = new HashMap<String, CompletableFuture<Void>>();
+	private Long maxbytes = 0L;
+	private Long bytes = 0L;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong served = new AtomicLong(0);
+
+	private static final class Entry {
+		final ByteBuffer data;
+		final Long mtime;
+
+		Entry(ByteBuffer d, Long m) {
+			data = d;
+			mtime = m;
+		}
+	}
+
+	private FileCache() {
+	}
+
+	public static synchronized FileCache getInstance() {
+		if (instance == null) {
+			instance = new FileCache();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param b
+	 *            how many bytes of files to keep; 0 turns the cache off
+	 */
+	public synchronized void setMaxBytes(Long b) {
+		if (b < 0) {
+			throw new IllegalArgumentException("size < 0");
+		}
+
+		maxbytes = b;
+		evict();
+	}
+
+	/**
+	 * Looks the file up, and has it read in if it's been asked for often
+	 * enough
+	 *
+	 * @param f
+	 *            file about to be sent
+	 * @return its contents, read-only and positioned at 0, or null if it's
+	 *         to be sent from disk
+	 */
+	ByteBuffer lookup(File f) {
+		Long max;
+		synchronized (this) {
+			max = maxbytes;
+		}
+
+		if (max == 0) {
+			return null;
+		}
+
+		String key;
+		BasicFileAttributes a;
+		try {
+			key = f.getCanonicalPath();
+			a = Files.readAttributes(f.toPath(), BasicFileAttributes.class,
+					new LinkOption[0]);
+		} catch (IOException e) {
+			return null;
+		}
+
+		if (!a.isRegularFile()) {
+			return null;
+		}
+
+		Long mtime = a.lastModifiedTime().toMillis();
+		Long size = a.size();
+		CompletableFuture<Void> cf;
+
+		synchronized (this) {
+			Entry e = cache.get(key);
+
+			if (e != null) {
+				if (e.mtime.equals(mtime) && e.data.capacity() == size) {
+					hits.incrementAndGet();
+					return e.data.duplicate();
+				}
+
+				remove(key);
+			}
+
+			misses.incrementAndGet();
+
+			if (fills.containsKey(key)) {
+				return null;
+			}
+
+			if (size > Math.min(maxbytes / 4, Integer.MAX_VALUE)
+					|| seen.remove(key) == null) {
+				seen.put(key, true);
+				return null;
+			}
+
+			cf = new CompletableFuture<Void>();
+			fills.put(key, cf);
+		}
+
+		startFill(key, mtime, size, cf);
+
+		return null;
+	}
+
+	private void startFill(final String key, final Long mtime,
+			final Long size, final CompletableFuture<Void> cf) {
+		try {
+			FILLER.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fill(key, mtime, size, cf);
+					} finally {
+						synchronized (FileCache.this) {
+							if (fills.get(key) == cf) {
+								fills.remove(key);
+							}
+						}
+
+						cf.complete(null);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				fills.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Reads the whole file and keeps it, unless it changed or was dropped
+	 * in the meantime
+	 */
+	private void fill(String key, Long mtime, Long size,
+			CompletableFuture<Void> cf) {
+		ByteBuffer bb;
+		try {
+			bb = ByteBuffer.allocateDirect(size.intValue());
+		} catch (OutOfMemoryError e) {
+			/* direct memory limit; it's served from disk */
+			return;
+		}
+
+		File f = new File(key);
+
+		try {
+			FileChannel fc = FileChannel.open(f.toPath(),
+					StandardOpenOption.READ);
+
+			try {
+				while (bb.hasRemaining()) {
+					if (fc.read(bb, bb.position()) < 0) {
+						return;
+					}
+				}
+
+				if (fc.size() != size || f.lastModified() != mtime) {
+					return;
+				}
+			} finally {
+				fc.close();
+			}
+		} catch (IOException e) {
+			return;
+		}
+
+		bb.flip();
+
+		synchronized (this) {
+			/* an upload meanwhile took it off the list */
+			if (fills.get(key) != cf || size > maxbytes / 4) {
+				return;
+			}
+
+			remove(key);
+			cache.put(key, new Entry(bb.asReadOnlyBuffer(), mtime));
+			bytes += size;
+			evict();
+		}
+	}
+
+	/**
+	 * Drops f, e.g. after it was uploaded
+	 */
+	void invalidate(File f) {
+		String key;
+		try {
+			key = f.getCanonicalPath();
+		} catch (IOException e) {
+			return;
+		}
+
+		synchronized (this) {
+			remove(key);
+			fills.remove(key);
+		}
+	}
+
+	/**
+	 * @param n
+	 *            bytes sent from a cached copy
+	 */
+	void addServed(Long n) {
+		served.addAndGet(n);
+	}
+
+	private void remove(String key) {
+		Entry e = cache.remove(key);
+
+		if (e != null) {
+			bytes -= e.data.capacity();
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+
+		while (bytes > maxbytes && it.hasNext()) {
+			bytes -= it.next().getValue().data.capacity();
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return number of downloads served from the cache
+	 */
+	public Long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of downloads read from disk while the cache was on
+	 */
+	public Long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return hits / lookups, 0 if there were none
+	 */
+	public Double getHitRatio() {
+		Long h = hits.get(), n = h + misses.get();
+
+		return n == 0 ? 0.0 : h / (double) n;
+	}
+
+	/**
+	 * @return bytes sent from cached copies
+	 */
+	public Long getServed() {
+		return served.get();
+	}
+
+	/**
+	 * @return bytes of files held
+	 */
+	public synchronized Long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return number of files held
+	 */
+	public synchronized Integer getCount() {
+		return cache.size();
+	}
+}
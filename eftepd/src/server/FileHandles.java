@@ -0,0 +1,334 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-only channels of recently downloaded files, kept open and shared by
+ * all sessions, least recently used first out when there are more than
+ * allowed.
+ * <p>
+ * A handle carries the file's canonical path, size and mtime, so a download
+ * of a file opened lately costs no open and no path lookups. A cached
+ * handle is checked against the file, with a single stat, when it's older
+ * than {@link #RECHECK} ms; a file replaced or changed meanwhile is opened
+ * anew. Uploads drop the handle at once.
+ * <p>
+ * Users may only read through a handle with positional reads, and must
+ * {@link Handle#release()} it when done; the channel is closed when it has
+ * left the cache and the last user released it.
+ *
+ * @author athantor
+ *
+ */
+public final class FileHandles {
+
+	private static volatile FileHandles instance = null;
+
+	private static final Long RECHECK = 1000L;
+
+	private final LinkedHashMap<String, Handle> cache = new LinkedHashMap<String, Handle>(
+			16, 0.75f, true);
+	private Integer maxopen = 256;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong opens = new AtomicLong(0);
+
+	/**
+	 * An open file, shared
+	 */
+	final class Handle {
+		private final FileChannel ch;
+		private final String path;
+		private final Object fkey;
+		private final Long size;
+		private final Long mtime;
+		private volatile Long checked;
+		private Integer users = 1;
+		private Boolean cached = false;
+
+		private Handle(FileChannel c, String p, BasicFileAttributes a) {
+			ch = c;
+			path = p;
+			fkey = a.fileKey();
+			size = a.size();
+			mtime = a.lastModifiedTime().toMillis();
+			checked = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the channel; read it with positional reads only
+		 */
+		FileChannel getChannel() {
+			return ch;
+		}
+
+		/**
+		 * @return canonical path of the file
+		 */
+		String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return size of the file when it was opened or last checked
+		 */
+		Long getSize() {
+			return size;
+		}
+
+		Long getMtime() {
+			return mtime;
+		}
+
+		/**
+		 * Gives the handle back; it mustn't be used afterwards
+		 */
+		void release() {
+			synchronized (FileHandles.this) {
+				if (--users > 0 || cached) {
+					return;
+				}
+			}
+
+			close();
+		}
+
+		private void close() {
+			try {
+				ch.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private Boolean matches(BasicFileAttributes a) {
+			return a.size() == size
+					&& a.lastModifiedTime().toMillis() == mtime
+					&& (fkey == null || fkey.equals(a.fileKey()));
+		}
+	}
+
+	private FileHandles() {
+	}
+
+	public static synchronized FileHandles getInstance() {
+		if (instance == null) {
+			instance = new FileHandles();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param n
+	 *            how many files to keep open; 0 turns the cache off
+	 */
+	public void setMaxOpen(Integer n) {
+		if (n < 0) {
+			throw new IllegalArgumentException("count < 0");
+		}
+
+		for (Handle h : trim(n)) {
+			h.close();
+		}
+	}
+
+	/**
+	 * @return a cached handle of f that's known to be current, or null
+	 */
+	Handle acquireCached(File f) {
+		Handle h;
+
+		synchronized (this) {
+			h = cache.get(f.getAbsolutePath());
+
+			if (h == null) {
+				return null;
+			}
+
+			h.users++;
+		}
+
+		if (System.currentTimeMillis() - h.checked >= RECHECK) {
+			Boolean ok;
+			try {
+				ok = h.matches(Files.readAttributes(f.toPath(),
+						BasicFileAttributes.class, new LinkOption[0]));
+			} catch (IOException e) {
+				ok = false;
+			}
+
+			if (!ok) {
+				drop(f.getAbsolutePath(), h);
+				h.release();
+				return null;
+			}
+
+			h.checked = System.currentTimeMillis();
+		}
+
+		hits.incrementAndGet();
+		return h;
+	}
+
+	/**
+	 * Gets a handle of f, opening f if there's no current one
+	 *
+	 * @throws IOException
+	 *             if f can't be opened
+	 */
+	Handle acquire(File f) throws IOException {
+		Handle h = acquireCached(f);
+
+		if (h != null) {
+			return h;
+		}
+
+		FileChannel c = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+		try {
+			h = new Handle(c, f.getCanonicalPath(), Files.readAttributes(f
+					.toPath(), BasicFileAttributes.class, new LinkOption[0]));
+		} catch (IOException e) {
+			c.close();
+			throw e;
+		}
+
+		opens.incrementAndGet();
+
+		Iterable<Handle> gone;
+		Handle old;
+		synchronized (this) {
+			if (maxopen == 0) {
+				return h;
+			}
+
+			h.cached = true;
+			old = cache.put(f.getAbsolutePath(), h);
+			if (old != null) {
+				old.cached = false;
+				if (old.users > 0) {
+					old = null;
+				}
+			}
+
+			gone = trim(maxopen);
+		}
+
+		if (old != null) {
+			old.close();
+		}
+		for (Handle g : gone) {
+			g.close();
+		}
+
+		return h;
+	}
+
+	/**
+	 * Drops the handle of f, e.g. after f was uploaded; users keep theirs
+	 */
+	void invalidate(File f) {
+		Handle h;
+
+		synchronized (this) {
+			h = cache.get(f.getAbsolutePath());
+		}
+
+		if (h != null) {
+			drop(f.getAbsolutePath(), h);
+		}
+	}
+
+	private void drop(String key, Handle h) {
+		synchronized (this) {
+			if (cache.get(key) != h) {
+				return;
+			}
+
+			cache.remove(key);
+			h.cached = false;
+
+			if (h.users > 0) {
+				return;
+			}
+		}
+
+		h.close();
+	}
+
+	/**
+	 * Sets the limit and takes the handles over it out of the cache
+	 *
+	 * @return the ones nobody uses, to be closed
+	 */
+	private synchronized Iterable<Handle> trim(Integer n) {
+		maxopen = n;
+
+		ArrayList<Handle> gone = new ArrayList<Handle>();
+		Iterator<Map.Entry<String, Handle>> it = cache.entrySet().iterator();
+
+		while (cache.size() > maxopen && it.hasNext()) {
+			Handle h = it.next().getValue();
+			it.remove();
+			h.cached = false;
+
+			if (h.users == 0) {
+				gone.add(h);
+			}
+		}
+
+		return gone;
+	}
+
+	/**
+	 * @return number of downloads that found their file open
+	 */
+	public Long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of files opened for download
+	 */
+	public Long getOpens() {
+		return opens.get();
+	}
+
+	/**
+	 * @return number of files held open
+	 */
+	public synchronized Integer getCount() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Cuts control connection input into command lines inside one buffer of
+ * fixed size, kept for the whole session. Lines end with LF, optionally
+ * preceded by CR.
+ * <p>
+ * A line is handed out as a {@link Line} looking into the buffer, so nothing
+ * is allocated until somebody asks for its text, or just the argument. A line longer than the
+ * buffer is thrown away up to its end and reported once as
+ * {@link Line#isTooLong() too long}; the buffer never grows.
+ * <p>
+ * The last line handed out stays valid until the next {@link #next()} or
+ * fill.
+ *
+ * @author athantor
+ *
+ */
+final class LineFramer {
+
+	private final byte[] a;
+	private final ByteBuffer bb;
+	private final Line line = new Line();
+	private final Charset cs = Charset.defaultCharset();
+
+	/* unconsumed input is a[head, tail); a[head, scan) has no LF */
+	private int head = 0, scan = 0, tail = 0;
+	private Boolean skipping = false;
+
+	/**
+	 * A command line, or a marker for one that was too long
+	 */
+	final class Line implements CharSequence {
+		private int start, end;
+		private Boolean toolong;
+
+		private Line set(int s, int e, Boolean tl) {
+			start = s;
+			end = e;
+			toolong = tl;
+			return this;
+		}
+
+		/**
+		 * @return true if the line didn't fit and was dropped; it's empty
+		 *         then
+		 */
+		Boolean isTooLong() {
+			return toolong;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		/**
+		 * @return byte at index as Latin-1, which is enough for verbs
+		 */
+		@Override
+		public char charAt(int index) {
+			return (char) (a[start + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int s, int e) {
+			return toString().subSequence(s, e);
+		}
+
+		/**
+		 * @return the text after the verb and the space that ends it,
+		 *         decoded with the default charset; null if there's no
+		 *         space
+		 */
+		String arg() {
+			for (int i = start; i < end; i++) {
+				if (a[i] == ' ') {
+					return new String(a, i + 1, end - i - 1, cs);
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * @return how many fields splitting the line at every space would
+		 *         give, at most max; like
+		 *         <code>toString().split(" ", max).length</code>
+		 */
+		Integer fields(Integer max) {
+			int n = 1;
+
+			for (int i = start; i < end && n < max; i++) {
+				if (a[i] == ' ') {
+					n++;
+				}
+			}
+
+			return n;
+		}
+
+		/**
+		 * @return the line decoded with the default charset
+		 */
+		@Override
+		public String toString() {
+			return new String(a, start, end - start, cs);
+		}
+	}
+
+	/**
+	 * @param max
+	 *            longest line accepted, terminator excluded
+	 */
+	LineFramer(Integer max) {
+		if (max <= 0) {
+			throw new IllegalArgumentException("max <= 0");
+		}
+
+		a = new byte[max + 2];
+		bb = ByteBuffer.wrap(a);
+	}
+
+	/**
+	 * @return next complete line, or null if more input is needed
+	 */
+	Line next() {
+		for (int i = scan; i < tail; i++) {
+			if (a[i] != '\n') {
+				continue;
+			}
+
+			int s = head, e = i;
+			head = scan = i + 1;
+
+			if (skipping) {
+				skipping = false;
+				continue;
+			}
+
+			if (e > s && a[e - 1] == '\r') {
+				e--;
+			}
+
+			return line.set(s, e, false);
+		}
+
+		scan = tail;
+
+		if (skipping) {
+			head = scan = tail = 0;
+		} else if (tail - head == a.length) {
+			skipping = true;
+			head = scan = tail = 0;
+
+			return line.set(0, 0, true);
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return true if a whole line, or the end of one too long, is waiting
+	 */
+	Boolean hasLine() {
+		for (int i = scan; i < tail; i++) {
+			if (a[i] == '\n') {
+				return true;
+			}
+		}
+
+		return tail - head == a.length;
+	}
+
+	/**
+	 * Reads once from is, blocking
+	 *
+	 * @return bytes read, -1 at end of stream
+	 */
+	int fill(InputStream is) throws IOException {
+		compact();
+
+		int n = is.read(a, tail, a.length - tail);
+		if (n > 0) {
+			tail += n;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Reads once from ch
+	 *
+	 * @return bytes read, -1 at end of stream
+	 */
+	int fill(ReadableByteChannel ch) throws IOException {
+		compact();
+
+		bb.limit(a.length).position(tail);
+		int n = ch.read(bb);
+		tail = bb.position();
+
+		return n;
+	}
+
+	/**
+	 * Blocks until a whole line is there
+	 *
+	 * @return the line, or null at end of stream
+	 */
+	Line readLine(InputStream is) throws IOException {
+		Line l;
+
+		while ((l = next()) == null) {
+			if (fill(is) < 0) {
+				return null;
+			}
+		}
+
+		return l;
+	}
+
+	private void compact() {
+		if (head == 0) {
+			return;
+		}
+
+		System.arraycopy(a, head, a, 0, tail - head);
+		tail -= head;
+		scan -= head;
+		head = 0;
+	}
+}
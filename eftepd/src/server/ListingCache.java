@@ -0,0 +1,336 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rendered LIST output of recently listed directories, keyed by canonical
+ * path, least recently used first out when the byte budget is exceeded.
+ * <p>
+ * Every cached directory is watched with a {@link WatchService}, so any
+ * change in it drops its listing. The watch is set up before the listing is
+ * made, so a change made while listing is never missed. The directory's
+ * mtime is checked on every hit as well; a directory that can't be watched
+ * is cached only for {@link #UNWATCHEDTTL} ms on top of that.
+ * <p>
+ * A watch doesn't see changes inside subdirectories, so the times shown for
+ * them may lag behind until the directory itself changes.
+ *
+ * @author athantor
+ *
+ */
+public final class ListingCache {
+
+	private static volatile ListingCache instance = null;
+
+	private static final Long UNWATCHEDTTL = 2000L;
+	private static final Integer MAXENTRIES = 10000;
+
+	private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private final HashMap<WatchKey, String> watched = new HashMap<WatchKey, String>();
+	private WatchService ws = null;
+	private Long maxbytes = 16L * 1024 * 1024;
+	private Long bytes = 0L;
+
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+
+	private static final class Entry {
+		byte[] data = null;
+		Long mtime;
+		Long stamp;
+		Integer year;
+		WatchKey wk;
+	}
+
+	/**
+	 * Result of {@link ListingCache#lookup(File)}
+	 */
+	static final class Lookup {
+		private final String key;
+		private final Entry ent;
+		private final byte[] data;
+
+		private Lookup(String k, Entry e, byte[] d) {
+			key = k;
+			ent = e;
+			data = d;
+		}
+
+		/**
+		 * @return cached listing or null
+		 */
+		byte[] getData() {
+			return data;
+		}
+	}
+
+	private ListingCache() {
+	}
+
+	public static synchronized ListingCache getInstance() {
+		if (instance == null) {
+			instance = new ListingCache();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param b
+	 *            how many bytes of listings to keep; 0 turns the cache off
+	 */
+	public synchronized void setMaxBytes(Long b) {
+		if (b < 0) {
+			throw new IllegalArgumentException("size < 0");
+		}
+
+		maxbytes = b;
+		evict();
+	}
+
+	/**
+	 * Looks the directory up; on a miss the directory is watched from now
+	 * on, so the listing made next can be {@link #put} here
+	 *
+	 * @param dir
+	 *            directory about to be listed
+	 * @return null if it isn't cacheable at all
+	 */
+	synchronized Lookup lookup(File dir) {
+		if (maxbytes == 0 || !dir.isDirectory()) {
+			return null;
+		}
+
+		String key;
+		try {
+			key = dir.getCanonicalPath();
+		} catch (IOException e) {
+			return null;
+		}
+
+		Long now = System.currentTimeMillis();
+		Long mtime = dir.lastModified();
+		Entry e = cache.get(key);
+
+		if (e != null && e.data != null) {
+			if (e.mtime.equals(mtime) && e.year == LocalDate.now().getYear()
+					&& (e.wk != null || now - e.stamp < UNWATCHEDTTL)) {
+				hits.incrementAndGet();
+				return new Lookup(key, e, e.data);
+			}
+
+			remove(key);
+			e = null;
+		}
+
+		misses.incrementAndGet();
+
+		if (e == null) {
+			e = new Entry();
+			e.wk = watch(dir);
+			cache.put(key, e);
+			evict();
+		}
+
+		e.mtime = mtime;
+		e.stamp = now;
+		e.year = LocalDate.now().getYear();
+
+		return new Lookup(key, e, null);
+	}
+
+	/**
+	 * Stores the listing made after a missed lookup, unless the directory
+	 * has changed in the meantime
+	 *
+	 * @param data
+	 *            the listing; null if it couldn't be made
+	 */
+	synchronized void put(Lookup l, byte[] data) {
+		if (l == null || l.data != null || cache.get(l.key) != l.ent) {
+			return;
+		}
+
+		if (data == null || data.length > maxbytes / 4) {
+			remove(l.key);
+			return;
+		}
+
+		if (l.ent.data != null) {
+			bytes -= l.ent.data.length;
+		}
+
+		l.ent.data = data;
+		bytes += data.length;
+
+		evict();
+	}
+
+	/**
+	 * @return size of the biggest listing worth keeping
+	 */
+	synchronized Integer getMaxEntrySize() {
+		return (int) Math.min(Integer.MAX_VALUE, maxbytes / 4);
+	}
+
+	/**
+	 * Drops the listing of dir, e.g. after a file was uploaded into it
+	 */
+	synchronized void invalidate(File dir) {
+		try {
+			remove(dir.getCanonicalPath());
+		} catch (IOException e) {
+		}
+	}
+
+	private void remove(String key) {
+		Entry e = cache.remove(key);
+
+		if (e != null) {
+			if (e.data != null) {
+				bytes -= e.data.length;
+			}
+
+			if (e.wk != null) {
+				e.wk.cancel();
+				watched.remove(e.wk);
+			}
+		}
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator();
+
+		while ((bytes > maxbytes || cache.size() > MAXENTRIES)
+				&& it.hasNext()) {
+			Entry e = it.next().getValue();
+			it.remove();
+
+			if (e.data != null) {
+				bytes -= e.data.length;
+			}
+
+			if (e.wk != null) {
+				e.wk.cancel();
+				watched.remove(e.wk);
+			}
+		}
+	}
+
+	private WatchKey watch(File dir) {
+		try {
+			if (ws == null) {
+				ws = FileSystems.getDefault().newWatchService();
+
+				Thread t = new Thread("eftepd-lscache") {
+					@Override
+					public void run() {
+						watchLoop();
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+
+			WatchKey wk = dir.toPath().register(ws,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			watched.put(wk, dir.getCanonicalPath());
+
+			return wk;
+		} catch (IOException e) {
+			return null;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	private void watchLoop() {
+		while (true) {
+			WatchKey wk;
+
+			try {
+				wk = ws.take();
+			} catch (InterruptedException e) {
+				continue;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			wk.pollEvents();
+
+			synchronized (this) {
+				String key = watched.get(wk);
+
+				if (key != null) {
+					remove(key);
+				}
+			}
+
+			wk.reset();
+		}
+	}
+
+	/**
+	 * @return number of listings served from the cache
+	 */
+	public Long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of listings that had to be made
+	 */
+	public Long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return bytes of listings held
+	 */
+	public synchronized Long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return number of directories held
+	 */
+	public synchronized Integer getCount() {
+		return cache.size();
+	}
+}
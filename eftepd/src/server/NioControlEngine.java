@@ -0,0 +1,524 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logging.Logger;
+import logging.Logger.Lvl;
+import settings.SettingsManager;
+
+/**
+ * Selector based engine for control connections. Sockets are multiplexed over
+ * a few reactor threads which only do the i/o and cut input into lines;
+ * commands are run by {@link ClientConnection} on a small, fixed pool of
+ * command threads. A session has at most one command in flight, so
+ * pipelined commands are still run in order.
+ *
+ * @author athantor
+ *
+ */
+public final class NioControlEngine {
+
+	private final Logger log;
+	private final Reactor[] reactors;
+	private final ExecutorService cmdexec;
+	private final AtomicInteger sesscnt = new AtomicInteger(0);
+	private final AtomicInteger nextr = new AtomicInteger(0);
+	private final Integer cmdthreads;
+
+	/**
+	 * @param sm
+	 *            settings
+	 * @param l
+	 *            logger
+	 * @throws IOException
+	 *             if selector can't be opened
+	 */
+	public NioControlEngine(SettingsManager sm, Logger l) throws IOException {
+		log = l;
+
+		Integer rcnt = getIntSetting(sm, "ReactorThreads", 1);
+		cmdthreads = getIntSetting(sm, "CommandThreads", 16);
+
+		reactors = new Reactor[rcnt];
+		for (int i = 0; i < rcnt; i++) {
+			reactors[i] = new Reactor(i);
+		}
+
+		cmdexec = Executors.newFixedThreadPool(cmdthreads, new ThreadFactory() {
+			private final AtomicInteger cnt = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "eftepd-cmd-" + cnt.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private Integer getIntSetting(SettingsManager sm, String key, Integer def) {
+		if (sm.getServerSett().hasProperty(key)) {
+			try {
+				Integer v = Integer.parseInt(sm.getServerSett().getProperty(key)
+						.trim());
+				if (v <= 0) {
+					throw new IllegalArgumentException(key + " <= 0");
+				}
+
+				return v;
+			} catch (Exception e) {
+				log.addMiscMsg(null, "Invalid setting „" + key + "”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+
+		return def;
+	}
+
+	public void start() {
+		for (Reactor r : reactors) {
+			r.start();
+		}
+
+		log.addMiscMsg(null, String.format(
+				"NIO control engine: %d reactor(s), %d command thread(s)",
+				reactors.length, cmdthreads), Lvl.NOTICE);
+	}
+
+	/**
+	 * Takes over a freshly accepted control connection
+	 *
+	 * @param sc
+	 *            client channel
+	 * @param cc
+	 *            session
+	 * @throws IOException
+	 */
+	public void addClient(SocketChannel sc, ClientConnection cc)
+			throws IOException {
+		sc.configureBlocking(false);
+		sesscnt.incrementAndGet();
+
+		Reactor r = reactors[(nextr.getAndIncrement() & Integer.MAX_VALUE)
+				% reactors.length];
+		final Session s = new Session(sc, cc, r);
+
+		r.post(new Runnable() {
+			@Override
+			public void run() {
+				s.register();
+			}
+		});
+	}
+
+	public Integer getClientsCount() {
+		return sesscnt.get();
+	}
+
+	/**
+	 * One selector with its own set of sessions
+	 */
+	private final class Reactor extends Thread {
+		private final Selector sel;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		Reactor(Integer n) throws IOException {
+			super("eftepd-reactor-" + n);
+			setDaemon(true);
+
+			sel = Selector.open();
+		}
+
+		/**
+		 * Runs r on the reactor thread
+		 */
+		void post(Runnable r) {
+			tasks.add(r);
+			sel.wakeup();
+		}
+
+		@Override
+		public void run() {
+			Long lastidle = System.currentTimeMillis();
+
+			while (true) {
+				try {
+					sel.select(1000);
+				} catch (IOException e) {
+					log.addMiscMsg(null, "Select failed: "
+							+ e.getLocalizedMessage(), Lvl.ERROR);
+					continue;
+				}
+
+				Runnable t;
+				while ((t = tasks.poll()) != null) {
+					t.run();
+				}
+
+				Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove();
+
+					Session s = (Session) k.attachment();
+
+					try {
+						if (k.isReadable()) {
+							s.onRead();
+						}
+						if (k.isValid() && k.isWritable()) {
+							s.flushOut();
+						}
+					} catch (CancelledKeyException e) {
+					}
+				}
+
+				Long now = System.currentTimeMillis();
+				if (now - lastidle >= 1000) {
+					lastidle = now;
+
+					for (SelectionKey k : sel.keys()) {
+						if (k.isValid()) {
+							((Session) k.attachment()).checkIdle(now);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * State of one control connection. Everything except {@link #send} runs
+	 * on the reactor thread.
+	 */
+	private final class Session {
+		private final SocketChannel sc;
+		private final ClientConnection cc;
+		private final Reactor rctr;
+		private final LineFramer in;
+		private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		private SelectionKey key;
+		private Boolean busy = false, closing = false, closed = false;
+		private volatile Boolean broken = false;
+		private Runnable closer = null;
+		private Long lastact = System.currentTimeMillis();
+
+		private final Runnable flusher = new Runnable() {
+			@Override
+			public void run() {
+				flushOut();
+			}
+		};
+
+		Session(SocketChannel sc, ClientConnection cc, Reactor r) {
+			this.sc = sc;
+			this.cc = cc;
+			this.rctr = r;
+			this.in = cc.getFramer();
+		}
+
+		void register() {
+			try {
+				key = sc.register(rctr.sel, 0, this);
+			} catch (IOException e) {
+				sesscnt.decrementAndGet();
+				closed = true;
+				close();
+				return;
+			}
+
+			submit(new Callable<Runnable>() {
+				@Override
+				public Runnable call() {
+					cc.hello(new ChannelOutput());
+					return null;
+				}
+			});
+		}
+
+		/**
+		 * Runs a step of the session on the command pool. The step returns
+		 * null to keep the session going or the action closing it.
+		 */
+		private void submit(final Callable<Runnable> step) {
+			busy = true;
+			updateOps();
+
+			cmdexec.execute(new Runnable() {
+				@Override
+				public void run() {
+					Runnable res;
+					try {
+						res = step.call();
+					} catch (Exception e) {
+						log.addMiscMsg(null, "Session died: " + e, Lvl.ERROR);
+						res = closeIt();
+					}
+
+					final Runnable fres = res;
+					rctr.post(new Runnable() {
+						@Override
+						public void run() {
+							finished(fres);
+						}
+					});
+				}
+			});
+		}
+
+		private void finished(Runnable res) {
+			busy = false;
+			lastact = System.currentTimeMillis();
+
+			if (res != null) {
+				shutdown(res);
+			} else if (broken) {
+				submit(new Callable<Runnable>() {
+					@Override
+					public Runnable call() {
+						cc.connectionLost(null);
+						return closeIt();
+					}
+				});
+			} else {
+				updateOps();
+				dispatch();
+			}
+		}
+
+		private void dispatch() {
+			if (busy || closing || broken) {
+				return;
+			}
+
+			final LineFramer.Line l = in.next();
+			if (l == null) {
+				return;
+			}
+
+			submit(new Callable<Runnable>() {
+				@Override
+				public Runnable call() {
+					if (cc.process(l)) {
+						return null;
+					}
+
+					return new Runnable() {
+						@Override
+						public void run() {
+							cc.disconnect();
+						}
+					};
+				}
+			});
+		}
+
+		void onRead() {
+			int n;
+			try {
+				n = in.fill(sc);
+			} catch (IOException e) {
+				lost(e);
+				return;
+			}
+
+			if (n < 0) {
+				lost(null);
+				return;
+			}
+
+			lastact = System.currentTimeMillis();
+			dispatch();
+		}
+
+		private void lost(IOException e) {
+			if (broken || closed) {
+				return;
+			}
+
+			broken = true;
+			out.clear();
+
+			if (!busy) {
+				final IOException fe = e;
+				submit(new Callable<Runnable>() {
+					@Override
+					public Runnable call() {
+						cc.connectionLost(fe);
+						return closeIt();
+					}
+				});
+			}
+		}
+
+		void checkIdle(Long now) {
+			if (busy || closing || broken || cc.isTransferring()
+					|| now - lastact <= cc.getIdleTimeout()) {
+				return;
+			}
+
+			submit(new Callable<Runnable>() {
+				@Override
+				public Runnable call() {
+					cc.timedOut();
+					return closeIt();
+				}
+			});
+		}
+
+		/**
+		 * Queues reply bytes; may be called from any thread
+		 */
+		void send(ByteBuffer b) {
+			if (broken) {
+				return;
+			}
+
+			out.add(b);
+			rctr.post(flusher);
+		}
+
+		void flushOut() {
+			if (broken || closed) {
+				return;
+			}
+
+			try {
+				ByteBuffer b;
+				while ((b = out.peek()) != null) {
+					sc.write(b);
+					if (b.hasRemaining()) {
+						break;
+					}
+					out.poll();
+				}
+			} catch (IOException e) {
+				lost(e);
+				return;
+			}
+
+			updateOps();
+
+			if (closing && out.isEmpty()) {
+				finish();
+			}
+		}
+
+		private void shutdown(Runnable c) {
+			closing = true;
+			closer = c;
+			updateOps();
+
+			if (broken || out.isEmpty()) {
+				finish();
+			}
+		}
+
+		private void finish() {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			key.cancel();
+			sesscnt.decrementAndGet();
+
+			cmdexec.execute(closer);
+		}
+
+		private void updateOps() {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+
+			Integer ops = 0;
+			if (!busy && !closing && !broken) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!broken && !out.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+
+			key.interestOps(ops);
+		}
+
+		private Runnable closeIt() {
+			return new Runnable() {
+				@Override
+				public void run() {
+					cc.dropTransfer();
+					close();
+				}
+			};
+		}
+
+		private void close() {
+			try {
+				sc.close();
+			} catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Collects what the session prints and queues it on flush
+		 */
+		private final class ChannelOutput extends OutputStream {
+			private final ByteArrayOutputStream buf = new ByteArrayOutputStream(
+					256);
+
+			@Override
+			public synchronized void write(int b) {
+				buf.write(b);
+			}
+
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				buf.write(b, off, len);
+			}
+
+			@Override
+			public synchronized void flush() {
+				if (buf.size() > 0) {
+					send(ByteBuffer.wrap(buf.toByteArray()));
+					buf.reset();
+				}
+			}
+		}
+	}
+}
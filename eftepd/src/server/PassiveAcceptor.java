@@ -0,0 +1,348 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import logging.Logger;
+import logging.Logger.Lvl;
+import settings.SettingsManager;
+
+/**
+ * One thread accepting passive data connections for all sessions.
+ * <p>
+ * With „PassivePorts” (e.g. <code>50000-50099</code>) set, every port of the
+ * range is bound once at startup and PASV only leases a free one; otherwise
+ * an ephemeral listener is bound per PASV and closed after use. Either way
+ * the listener is watched by the acceptor's selector, and a connection is
+ * handed to the session that leased the port only if it comes from the
+ * same address as the session's control connection.
+ * <p>
+ * Leases nobody connects to within „PassiveTimeout” seconds are taken back.
+ *
+ * @author athantor
+ *
+ */
+public final class PassiveAcceptor extends Thread {
+
+	private final Logger log;
+	private final Selector sel;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final ConcurrentHashMap<Integer, DataSocketCreator> leases = new ConcurrentHashMap<Integer, DataSocketCreator>();
+	private final HashMap<Integer, ServerSocketChannel> pool = new HashMap<Integer, ServerSocketChannel>();
+	private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+	private final InetSocketAddress bindaddr;
+	private Long timeout = 60000L;
+
+	/**
+	 * @param sm
+	 *            settings
+	 * @param l
+	 *            logger
+	 * @throws IOException
+	 *             if selector can't be opened
+	 */
+	public PassiveAcceptor(SettingsManager sm, Logger l) throws IOException {
+		super("eftepd-pasv");
+		setDaemon(true);
+
+		log = l;
+		sel = Selector.open();
+
+		if (sm.getServerSett().hasProperty("BindAddress")) {
+			bindaddr = new InetSocketAddress(sm.getServerSett().getProperty(
+					"BindAddress"), 0);
+		} else {
+			bindaddr = new InetSocketAddress(0);
+		}
+
+		if (sm.getServerSett().hasProperty("PassiveTimeout")) {
+			try {
+				timeout = Long.parseLong(sm.getServerSett().getProperty(
+						"PassiveTimeout").trim()) * 1000;
+				if (timeout <= 0) {
+					throw new IllegalArgumentException("PassiveTimeout <= 0");
+				}
+			} catch (Exception e) {
+				timeout = 60000L;
+				log.addMiscMsg(null, "Invalid setting „PassiveTimeout”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+
+		if (sm.getServerSett().hasProperty("PassivePorts")) {
+			try {
+				String[] r = sm.getServerSett().getProperty("PassivePorts")
+						.trim().split("-", 2);
+				Integer min = Integer.parseInt(r[0].trim());
+				Integer max = r.length == 2 ? Integer.parseInt(r[1].trim())
+						: min;
+
+				if (min < 1 || max > 65535 || min > max) {
+					throw new IllegalArgumentException("bad range " + min
+							+ "-" + max);
+				}
+
+				bindPool(min, max);
+			} catch (Exception e) {
+				log.addMiscMsg(null, "Invalid setting „PassivePorts”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+	}
+
+	private void bindPool(Integer min, Integer max) {
+		for (int p = min; p <= max; p++) {
+			try {
+				ServerSocketChannel ssc = ServerSocketChannel.open();
+				ssc.socket().setReuseAddress(true);
+				ssc.socket().bind(
+						new InetSocketAddress(bindaddr.getAddress(), p));
+				ssc.configureBlocking(false);
+				ssc.register(sel, SelectionKey.OP_ACCEPT, p);
+
+				pool.put(p, ssc);
+				free.add(p);
+			} catch (IOException e) {
+				log.addMiscMsg(null, "Can't bind passive port " + p + ": "
+						+ e.getLocalizedMessage(), Lvl.WARNING);
+			}
+		}
+
+		log.addMiscMsg(null, String.format(
+				"Passive port pool: %d of %d port(s) bound", pool.size(), max
+						- min + 1), Lvl.NOTICE);
+	}
+
+	/**
+	 * Gives a listening port to the session
+	 *
+	 * @param d
+	 *            the lease
+	 * @param csock
+	 *            session's control connection
+	 * @return address to tell the client
+	 * @throws IOException
+	 *             if there is no free port or binding failed
+	 */
+	InetSocketAddress lease(final DataSocketCreator d, Socket csock)
+			throws IOException {
+		d.peer = csock.getInetAddress();
+		d.deadline = System.currentTimeMillis() + timeout;
+
+		if (!pool.isEmpty()) {
+			synchronized (free) {
+				d.port = free.poll();
+			}
+
+			if (d.port == null) {
+				throw new IOException("No free passive ports");
+			}
+
+			d.ssc = pool.get(d.port);
+			leases.put(d.port, d);
+		} else {
+			final ServerSocketChannel ssc = ServerSocketChannel.open();
+			try {
+				ssc.socket().bind(bindaddr);
+				ssc.configureBlocking(false);
+			} catch (IOException e) {
+				ssc.close();
+				throw e;
+			}
+
+			d.ssc = ssc;
+			d.port = ssc.socket().getLocalPort();
+			leases.put(d.port, d);
+
+			post(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (ssc.isOpen()) {
+							ssc.register(sel, SelectionKey.OP_ACCEPT, d.port);
+						}
+					} catch (IOException e) {
+						if (release(d)) {
+							d.failed(e);
+						}
+					}
+				}
+			});
+		}
+
+		InetAddress a = d.ssc.socket().getInetAddress();
+		if (a.isAnyLocalAddress()) {
+			a = csock.getLocalAddress();
+		}
+
+		return new InetSocketAddress(a, d.port);
+	}
+
+	/**
+	 * Gives the lease's port back
+	 *
+	 * @return false if it was already given back or used
+	 */
+	Boolean release(DataSocketCreator d) {
+		if (d.port == null || !leases.remove(d.port, d)) {
+			return false;
+		}
+
+		if (pool.containsKey(d.port)) {
+			synchronized (free) {
+				free.add(d.port);
+			}
+		} else {
+			try {
+				d.ssc.close();
+			} catch (IOException e) {
+			}
+		}
+
+		return true;
+	}
+
+	private void post(Runnable r) {
+		tasks.add(r);
+		sel.wakeup();
+	}
+
+	@Override
+	public void run() {
+		Long lastexp = System.currentTimeMillis();
+
+		while (true) {
+			try {
+				sel.select(1000);
+			} catch (IOException e) {
+				log.addMiscMsg(null, "Select failed: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+				continue;
+			}
+
+			Runnable t;
+			while ((t = tasks.poll()) != null) {
+				t.run();
+			}
+
+			Iterator<SelectionKey> it = sel.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey k = it.next();
+				it.remove();
+
+				if (k.isValid() && k.isAcceptable()) {
+					accept((ServerSocketChannel) k.channel(), (Integer) k
+							.attachment());
+				}
+			}
+
+			Long now = System.currentTimeMillis();
+			if (now - lastexp >= 1000) {
+				lastexp = now;
+				expire(now);
+			}
+		}
+	}
+
+	private void accept(ServerSocketChannel ssc, Integer port) {
+		SocketChannel c;
+
+		try {
+			c = ssc.accept();
+		} catch (IOException e) {
+			return;
+		}
+
+		if (c == null) {
+			return;
+		}
+
+		DataSocketCreator d = leases.get(port);
+		Boolean taken = false;
+
+		try {
+			if (d == null || !d.peer.equals(c.socket().getInetAddress())) {
+				log.addConnectionMsg(c.socket(),
+						"unexpected data conn on port " + port + "; dropped",
+						Lvl.WARNING);
+				c.close();
+				return;
+			}
+
+			if (!leases.remove(port, d)) {
+				c.close();
+				return;
+			}
+			taken = true;
+
+			if (!pool.containsKey(port)) {
+				ssc.close();
+			} else {
+				synchronized (free) {
+					free.add(port);
+				}
+			}
+
+			c.configureBlocking(true);
+		} catch (IOException e) {
+			try {
+				c.close();
+			} catch (IOException e1) {
+			}
+
+			/* its owner may be waiting with no timeout now */
+			if (taken) {
+				d.failed(e);
+			}
+			return;
+		}
+
+		log.addConnectionMsg(c.socket(), "data conn", Lvl.NORMAL);
+		d.accepted(c.socket());
+	}
+
+	private void expire(Long now) {
+		for (Map.Entry<Integer, DataSocketCreator> e : leases.entrySet()) {
+			DataSocketCreator d = e.getValue();
+
+			if (d.deadline < now && release(d)) {
+				d.failed(new SocketTimeoutException(
+						"nobody connected within " + (timeout / 1000) + " s"));
+			}
+		}
+	}
+}
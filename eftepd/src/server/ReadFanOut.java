@@ -0,0 +1,327 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent downloads of one file share its reads.
+ * <p>
+ * Downloads of the same file, by canonical path, mtime and size, join one
+ * {@link Stream}. The file is cut into {@link #CHUNK} byte chunks. While a
+ * download is alone it sends every chunk itself, with sendfile. Once others
+ * have joined, a chunk is read from disk by whichever download needs it
+ * first and kept in a window of the chunks read last, for the others to
+ * send at their own pace. A download that has fallen behind the window
+ * sends its chunks itself again, so a slow client never holds the others
+ * back or pins memory.
+ * <p>
+ * Chunks are direct buffers, so they go to a socket channel without being
+ * copied once more for every download. All windows together keep no more
+ * than a byte budget. Past it, new downloads aren't shared, and a shared
+ * file makes room by giving up its own oldest chunk; a chunk that doesn't
+ * fit anyway is sent by every download itself.
+ *
+ * @author athantor
+ *
+ */
+public final class ReadFanOut {
+
+	private static volatile ReadFanOut instance = null;
+
+	static final Integer CHUNK = 1024 * 1024;
+
+	private final HashMap<String, Stream> streams = new HashMap<String, Stream>();
+	private Integer window = 16;
+	private volatile Long budget = 64L * 1024 * 1024;
+
+	/* bytes of chunks in all windows */
+	private final AtomicLong held = new AtomicLong(0);
+	private final AtomicLong loaded = new AtomicLong(0);
+	private final AtomicLong shared = new AtomicLong(0);
+
+	/**
+	 * Downloads of one version of a file
+	 */
+	final class Stream {
+		private final String key;
+		private final Integer win;
+		private final HashMap<Long, CompletableFuture<ByteBuffer>> chunks = new HashMap<Long, CompletableFuture<ByteBuffer>>();
+		private Integer users = 0;
+		private Long hi = -1L;
+		/* chunks below it were given up for the budget */
+		private Long lo = 0L;
+
+		private Stream(String k, Integer w) {
+			key = k;
+			win = w;
+		}
+
+		/**
+		 * Gets the chunk starting at pos, reading it from fc if nobody has
+		 *
+		 * @return the chunk, positioned at 0, or null if the caller is to
+		 *         send it itself
+		 * @throws IOException
+		 *             if reading failed, here or in the download which read
+		 *             it
+		 */
+		ByteBuffer chunk(Long pos, FileChannel fc) throws IOException {
+			Long k = pos / CHUNK;
+			CompletableFuture<ByteBuffer> cf;
+			Boolean load = false;
+
+			synchronized (this) {
+				cf = chunks.get(k);
+
+				if (cf == null) {
+					if (users < 2 || k <= hi - win || k < lo) {
+						return null;
+					}
+
+					if (held.addAndGet(CHUNK) > budget && !giveUpOldest(k)) {
+						held.addAndGet(-CHUNK);
+						return null;
+					}
+
+					cf = new CompletableFuture<ByteBuffer>();
+					chunks.put(k, cf);
+					load = true;
+
+					if (k > hi) {
+						hi = k;
+						trim();
+					}
+				}
+			}
+
+			if (load) {
+				try {
+					ByteBuffer b;
+					try {
+						b = ByteBuffer.allocateDirect(CHUNK);
+					} catch (OutOfMemoryError e) {
+						/* direct memory limit; the caller sends it itself */
+						drop(k);
+						cf.complete(null);
+						return null;
+					}
+
+					while (b.hasRemaining()
+							&& fc.read(b, k * CHUNK + b.position()) >= 0) {
+					}
+
+					b.flip();
+					loaded.addAndGet(b.remaining());
+					cf.complete(b);
+				} catch (IOException e) {
+					drop(k);
+					cf.completeExceptionally(e);
+					throw e;
+				}
+			}
+
+			ByteBuffer b;
+			try {
+				b = cf.get();
+				if (b == null) {
+					return null;
+				}
+
+				b = b.duplicate();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted");
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().getMessage());
+			}
+
+			if (!load) {
+				shared.addAndGet(b.remaining());
+			}
+
+			return b;
+		}
+
+		/**
+		 * Ends the caller's download
+		 */
+		void leave() {
+			synchronized (ReadFanOut.this) {
+				synchronized (this) {
+					if (--users == 0) {
+						held.addAndGet(-(long) CHUNK * chunks.size());
+						chunks.clear();
+						streams.remove(key);
+					}
+				}
+			}
+		}
+
+		/* drops chunks that fell out of the window; called locked */
+		private void trim() {
+			Iterator<Long> it = chunks.keySet().iterator();
+
+			while (it.hasNext()) {
+				if (it.next() <= hi - win) {
+					it.remove();
+					held.addAndGet(-CHUNK);
+				}
+			}
+		}
+
+		/*
+		 * over the budget: makes room by dropping this stream's oldest chunk
+		 * below k; called locked
+		 */
+		private Boolean giveUpOldest(Long k) {
+			Long old = null;
+
+			for (Long c : chunks.keySet()) {
+				if (c < k && (old == null || c < old)) {
+					old = c;
+				}
+			}
+
+			if (old == null) {
+				return false;
+			}
+
+			chunks.remove(old);
+			held.addAndGet(-CHUNK);
+			lo = old + 1;
+
+			return true;
+		}
+
+		private void drop(Long k) {
+			synchronized (this) {
+				if (chunks.remove(k) != null) {
+					held.addAndGet(-CHUNK);
+				}
+			}
+		}
+	}
+
+	private ReadFanOut() {
+	}
+
+	public static synchronized ReadFanOut getInstance() {
+		if (instance == null) {
+			instance = new ReadFanOut();
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @param b
+	 *            bytes of chunks every shared file may keep; less than
+	 *            {@link #CHUNK} turns sharing off
+	 */
+	public synchronized void setWindow(Long b) {
+		if (b < 0) {
+			throw new IllegalArgumentException("window < 0");
+		}
+
+		window = (int) Math.min(Integer.MAX_VALUE, b / CHUNK);
+	}
+
+	/**
+	 * @param b
+	 *            bytes of chunks all shared files together may keep
+	 */
+	public void setBudget(Long b) {
+		if (b < 0) {
+			throw new IllegalArgumentException("budget < 0");
+		}
+
+		budget = b;
+	}
+
+	/**
+	 * Joins the downloads of a file; every join must be followed by a
+	 * {@link Stream#leave()}
+	 *
+	 * @param path
+	 *            canonical path of the file
+	 * @return null if sharing is off or the budget is used up
+	 */
+	Stream join(String path, Long mtime, Long size) {
+		String key = path + "\0" + mtime + "\0" + size;
+
+		synchronized (this) {
+			if (window == 0 || held.get() + CHUNK > budget) {
+				return null;
+			}
+
+			Stream s = streams.get(key);
+
+			if (s == null) {
+				s = new Stream(key, window);
+				streams.put(key, s);
+			}
+
+			synchronized (s) {
+				s.users++;
+			}
+
+			return s;
+		}
+	}
+
+	/**
+	 * @return bytes read from disk into shared windows
+	 */
+	public Long getLoaded() {
+		return loaded.get();
+	}
+
+	/**
+	 * @return bytes of chunks kept in shared windows now
+	 */
+	public Long getHeld() {
+		return held.get();
+	}
+
+	/**
+	 * @return bytes sent from shared windows by downloads that didn't read
+	 *         them
+	 */
+	public Long getShared() {
+		return shared.get();
+	}
+
+	/**
+	 * @return number of files being shared
+	 */
+	public synchronized Integer getCount() {
+		return streams.size();
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Replies of one control connection, encoded into a single reusable buffer
+ * and written with one call per flush.
+ * <p>
+ * Fixed replies can be encoded once with {@link #encode(String)} and
+ * printed as bytes. While flushes are {@link #setHold(Boolean) held},
+ * replies pile up in the buffer, so the answers to a batch of pipelined
+ * commands leave in as few segments as possible.
+ * <p>
+ * Like a {@link java.io.PrintWriter}, it never throws; see
+ * {@link #checkError()}. It may be used from a transfer's thread while the
+ * session's thread answers ABOR or STAT; a transfer sends its replies with
+ * {@link #flushNow()}, so they don't wait for the session's batch.
+ *
+ * @author athantor
+ *
+ */
+final class ReplyWriter {
+
+	private static final Integer INITSIZE = 1024;
+	private static final Integer KEEPSIZE = 16 * 1024;
+
+	private static final Charset CS = Charset.defaultCharset();
+
+	/* true if ASCII text can be copied as is */
+	private static final Boolean ASCIIOK;
+
+	static {
+		String s = " !\"#$%&'()*+,-./0123456789:;<=>?@ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+				+ "[\\]^_`abcdefghijklmnopqrstuvwxyz{|}~\r\n";
+		ASCIIOK = Arrays.equals(s.getBytes(CS), s
+				.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private final OutputStream os;
+	private final CharsetEncoder enc = CS.newEncoder().onMalformedInput(
+			CodingErrorAction.REPLACE).onUnmappableCharacter(
+			CodingErrorAction.REPLACE);
+	private ByteBuffer buf = ByteBuffer.allocate(INITSIZE);
+	private Boolean hold = false, err = false;
+
+	/**
+	 * @param o
+	 *            control connection output
+	 */
+	ReplyWriter(OutputStream o) {
+		os = o;
+	}
+
+	/**
+	 * @return s the way {@link #print(CharSequence)} would send it
+	 */
+	static byte[] encode(String s) {
+		return s.getBytes(CS);
+	}
+
+	/**
+	 * Appends text to the buffer
+	 */
+	synchronized void print(CharSequence s) {
+		int n = s.length();
+		ensure(n);
+
+		int i = 0;
+		if (ASCIIOK) {
+			byte[] a = buf.array();
+			int p = buf.position();
+
+			for (; i < n; i++) {
+				char c = s.charAt(i);
+				if (c >= 0x80) {
+					break;
+				}
+
+				a[p++] = (byte) c;
+			}
+
+			buf.position(p);
+		}
+
+		if (i < n) {
+			encodeRest(s, i);
+		}
+	}
+
+	/**
+	 * Appends a reply encoded beforehand
+	 */
+	synchronized void print(byte[] b) {
+		ensure(b.length);
+		buf.put(b);
+	}
+
+	/**
+	 * Sends what's in the buffer, unless flushes are held
+	 */
+	synchronized void flush() {
+		if (!hold) {
+			send();
+		}
+	}
+
+	/**
+	 * Sends what's in the buffer even while flushes are held, e.g. the
+	 * final reply of a transfer that ends during a batch of commands
+	 */
+	synchronized void flushNow() {
+		send();
+	}
+
+	private void send() {
+		if (buf.position() == 0) {
+			return;
+		}
+
+		try {
+			os.write(buf.array(), 0, buf.position());
+			os.flush();
+		} catch (IOException e) {
+			err = true;
+		}
+
+		if (buf.capacity() > KEEPSIZE) {
+			buf = ByteBuffer.allocate(INITSIZE);
+		} else {
+			buf.clear();
+		}
+	}
+
+	/**
+	 * @param h
+	 *            true to keep replies in the buffer on {@link #flush()}
+	 */
+	synchronized void setHold(Boolean h) {
+		hold = h;
+	}
+
+	/**
+	 * @return true if sending failed at some point
+	 */
+	synchronized Boolean checkError() {
+		return err;
+	}
+
+	private void encodeRest(CharSequence s, int from) {
+		CharBuffer cb = CharBuffer.wrap(s, from, s.length());
+
+		enc.reset();
+		while (enc.encode(cb, buf, true).isOverflow()) {
+			ensure(buf.capacity());
+		}
+		while (enc.flush(buf).isOverflow()) {
+			ensure(buf.capacity());
+		}
+	}
+
+	private void ensure(int n) {
+		if (buf.remaining() >= n) {
+			return;
+		}
+
+		ByteBuffer nb = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf
+				.position()
+				+ n));
+		buf.flip();
+		nb.put(buf);
+		buf = nb;
+	}
+}
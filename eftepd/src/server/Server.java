@@ -26,10 +26,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import logging.AsyncLogger;
+import logging.HostNameCache;
+import logging.Logger;
 import logging.XHTMLLogger;
+import logging.AsyncLogger.Overflow;
 import logging.Logger.Lvl;
 import settings.SettingsManager;
 
@@ -41,8 +46,10 @@ public final class Server {
 
 	private final ServerSocket ssock;
 	private volatile SettingsManager smngr;
-	private XHTMLLogger logger;
+	private Logger logger;
 	private ClientManager cmngr;
+	private NioControlEngine engine = null;
+	private PassiveAcceptor pasv;
 
 	/**
 	 * @throws IOException
@@ -51,20 +58,213 @@ public final class Server {
 	 */
 	public Server(SettingsManager sm) throws IOException,
 			ParserConfigurationException {
-		ssock = new ServerSocket();
-		cmngr = new ClientManager();
-
 		smngr = sm;
 
 		XHTMLLogger.setFile(new File(smngr.getTheDir().getAbsolutePath()
 				+ File.separatorChar + "eftepd.log.xml"));
-		logger = XHTMLLogger.getInstance();
+		logger = makeLogger(XHTMLLogger.getInstance());
+		setupDns();
+		setupListingCache();
+		setupFileCache();
+		setupReadFanOut();
+		setupFileHandles();
+		setupTreeListing();
+
+		cmngr = new ClientManager(smngr, logger);
+		pasv = new PassiveAcceptor(smngr, logger);
+
+		if (smngr.getServerSett().hasProperty("ControlEngine")
+				&& smngr.getServerSett().getProperty("ControlEngine").trim()
+						.equalsIgnoreCase("nio")) {
+			ssock = ServerSocketChannel.open().socket();
+			engine = new NioControlEngine(smngr, logger);
+		} else {
+			ssock = new ServerSocket();
+		}
+	}
+
+	/**
+	 * Puts the asynchronous front end before the log file
+	 */
+	private Logger makeLogger(XHTMLLogger xl) {
+		Integer size = 8192, rate = 10;
+		Overflow p = Overflow.BLOCK;
+
+		if (smngr.getServerSett().hasProperty("LogBufferSize")) {
+			try {
+				size = Integer.parseInt(smngr.getServerSett().getProperty(
+						"LogBufferSize").trim());
+			} catch (Exception e) {
+				xl.addMiscMsg(null, "Invalid setting „LogBufferSize”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+
+		if (smngr.getServerSett().hasProperty("LogSampleRate")) {
+			try {
+				rate = Integer.parseInt(smngr.getServerSett().getProperty(
+						"LogSampleRate").trim());
+			} catch (Exception e) {
+				xl.addMiscMsg(null, "Invalid setting „LogSampleRate”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+
+		if (smngr.getServerSett().hasProperty("LogOverflow")) {
+			try {
+				p = Overflow.valueOf(smngr.getServerSett().getProperty(
+						"LogOverflow").trim().toUpperCase());
+			} catch (Exception e) {
+				xl.addMiscMsg(null, "Invalid setting „LogOverflow”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+
+		try {
+			return new AsyncLogger(xl, size, p, rate);
+		} catch (IllegalArgumentException e) {
+			xl.addMiscMsg(null, "Invalid log buffer settings: "
+					+ e.getLocalizedMessage(), Lvl.ERROR);
+
+			return new AsyncLogger(xl, 8192, Overflow.BLOCK, 10);
+		}
+	}
+
+	/**
+	 * Reverse DNS settings: „ReverseDns” (yes/no), „DnsCacheTtl” and
+	 * „DnsNegativeTtl” in seconds
+	 */
+	private void setupDns() {
+		HostNameCache hnc = HostNameCache.getInstance();
+
+		if (smngr.getServerSett().hasProperty("ReverseDns")) {
+			hnc.setEnabled(!smngr.getServerSett().getProperty("ReverseDns")
+					.trim().equalsIgnoreCase("no"));
+		}
+
+		Long ttl = 3600L, negttl = 300L;
+
+		try {
+			if (smngr.getServerSett().hasProperty("DnsCacheTtl")) {
+				ttl = Long.parseLong(smngr.getServerSett().getProperty(
+						"DnsCacheTtl").trim());
+			}
+			if (smngr.getServerSett().hasProperty("DnsNegativeTtl")) {
+				negttl = Long.parseLong(smngr.getServerSett().getProperty(
+						"DnsNegativeTtl").trim());
+			}
+
+			hnc.setTtls(ttl * 1000, negttl * 1000);
+		} catch (Exception e) {
+			logger.addMiscMsg(null, "Invalid DNS cache TTL: "
+					+ e.getLocalizedMessage(), Lvl.ERROR);
+		}
+	}
+
+	/**
+	 * „ListingCacheSize”: bytes of rendered listings to keep; 0 turns the
+	 * cache off
+	 */
+	private void setupListingCache() {
+		if (smngr.getServerSett().hasProperty("ListingCacheSize")) {
+			try {
+				ListingCache.getInstance().setMaxBytes(
+						Long.parseLong(smngr.getServerSett().getProperty(
+								"ListingCacheSize").trim()));
+			} catch (Exception e) {
+				logger.addMiscMsg(null, "Invalid setting „ListingCacheSize”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+	}
+
+	/**
+	 * „FileCacheSize”: bytes of often downloaded files to keep off the heap;
+	 * 0, the default, turns the cache off
+	 */
+	private void setupFileCache() {
+		if (smngr.getServerSett().hasProperty("FileCacheSize")) {
+			try {
+				FileCache.getInstance().setMaxBytes(
+						Long.parseLong(smngr.getServerSett().getProperty(
+								"FileCacheSize").trim()));
+			} catch (Exception e) {
+				logger.addMiscMsg(null, "Invalid setting „FileCacheSize”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+	}
+
+	/**
+	 * „FanOutWindow”: bytes of a file read for concurrent downloads of it that
+	 * are kept for the slower ones, 0 turns sharing off; „FanOutMemory”: bytes
+	 * all those windows together may keep in direct memory, 64 MiB by default
+	 */
+	private void setupReadFanOut() {
+		if (smngr.getServerSett().hasProperty("FanOutWindow")) {
+			try {
+				ReadFanOut.getInstance().setWindow(
+						Long.parseLong(smngr.getServerSett().getProperty(
+								"FanOutWindow").trim()));
+			} catch (Exception e) {
+				logger.addMiscMsg(null, "Invalid setting „FanOutWindow”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+
+		if (smngr.getServerSett().hasProperty("FanOutMemory")) {
+			try {
+				ReadFanOut.getInstance().setBudget(
+						Long.parseLong(smngr.getServerSett().getProperty(
+								"FanOutMemory").trim()));
+			} catch (Exception e) {
+				logger.addMiscMsg(null, "Invalid setting „FanOutMemory”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+	}
+
+	/**
+	 * „OpenFileCache”: how many downloaded files to keep open; 0 turns the
+	 * cache off
+	 */
+	private void setupFileHandles() {
+		if (smngr.getServerSett().hasProperty("OpenFileCache")) {
+			try {
+				FileHandles.getInstance().setMaxOpen(
+						Integer.parseInt(smngr.getServerSett().getProperty(
+								"OpenFileCache").trim()));
+			} catch (Exception e) {
+				logger.addMiscMsg(null, "Invalid setting „OpenFileCache”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
+	}
+
+	/**
+	 * „TreeParallelism”: how many directories recursive listings may read at
+	 * once
+	 */
+	private void setupTreeListing() {
+		if (smngr.getServerSett().hasProperty("TreeParallelism")) {
+			try {
+				TreeListing.setParallelism(Integer.parseInt(smngr
+						.getServerSett().getProperty("TreeParallelism").trim()));
+			} catch (Exception e) {
+				logger.addMiscMsg(null, "Invalid setting „TreeParallelism”: "
+						+ e.getLocalizedMessage(), Lvl.ERROR);
+			}
+		}
 	}
 
 	public void dajesz() throws IOException {
 		logger.addMiscMsg(null, "Server starting", Lvl.NOTICE);
 
-		cmngr.start();
+		pasv.start();
+
+		if (engine != null) {
+			engine.start();
+		}
 
 		String addr = null;
 		int port = 21;
@@ -107,22 +307,44 @@ public final class Server {
 		while (true) {
 
 			Socket cs = ssock.accept();
+			Integer ccnt = engine == null ? cmngr.getClientsCount() : engine
+					.getClientsCount();
 
-			if (cmngr.getClientsCount() >= climit) {
-				logger.addConnectionMsg(cs, "limit exceeded: "
-						+ cmngr.getClientsCount(), Lvl.NOTICE);
+			if (ccnt >= climit) {
+				logger.addConnectionMsg(cs, "limit exceeded: " + ccnt,
+						Lvl.NOTICE);
 				cs.getOutputStream().write(
 						"421 There is too many clients connected\r\n"
 								.getBytes());
 				cs.close();
+			} else if (engine != null) {
+				ClientConnection cc = new ClientConnection(cs, logger, smngr,
+						pasv);
+				engine.addClient(cs.getChannel(), cc);
 			} else {
-				ClientConnection cc = new ClientConnection(cs, logger, smngr);
-				cmngr.addClient(cc);
+				ClientConnection cc = new ClientConnection(cs, logger, smngr,
+						pasv);
+
+				if (!cmngr.addClient(cc)) {
+					logger.addConnectionMsg(cs, "session queue full: " + ccnt,
+							Lvl.NOTICE);
+					cs.getOutputStream().write(
+							"421 There is too many clients waiting\r\n"
+									.getBytes());
+					cs.close();
+				}
 			}
 		}
 	}
 
 	public void finalize() {
+		ListingCache lc = ListingCache.getInstance();
+		logger.addMiscMsg(null, String.format(
+				"Listing cache: %d hit(s), %d miss(es), %d dir(s), %d B", lc
+						.getHits(), lc.getMisses(), lc.getCount(), lc
+						.getBytes()), Lvl.NORMAL);
+
 		logger.addMiscMsg(null, "Server exiting", Lvl.NOTICE);
+		logger.saveLog();
 	}
 }
@@ -0,0 +1,152 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Work started ahead of time on a shared pool, e.g. a listing made while the
+ * client is still opening the data connection.
+ * <p>
+ * Whoever gets to the work first does it: if no pool thread has picked it up
+ * by the time the result is needed, {@link #join()} does it itself, so a busy
+ * pool never makes a command slower than doing the work in place.
+ *
+ * @author athantor
+ *
+ */
+final class Speculation<T> implements Runnable {
+
+	/**
+	 * Something to do with a result nobody is going to use
+	 */
+	interface Discard<T> {
+		void discard(T v);
+	}
+
+	private static final ExecutorService POOL;
+
+	static {
+		Integer n = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(n, n, 30,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					private final AtomicInteger cnt = new AtomicInteger(0);
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "eftepd-prep-"
+								+ cnt.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		tpe.allowCoreThreadTimeOut(true);
+
+		POOL = tpe;
+	}
+
+	private final Callable<T> task;
+	private final CompletableFuture<T> res = new CompletableFuture<T>();
+	private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+	private Speculation(Callable<T> t) {
+		task = t;
+	}
+
+	/**
+	 * Starts t in the background
+	 */
+	static <T> Speculation<T> start(Callable<T> t) {
+		Speculation<T> s = new Speculation<T>(t);
+
+		try {
+			POOL.execute(s);
+		} catch (RejectedExecutionException e) {
+		}
+
+		return s;
+	}
+
+	@Override
+	public void run() {
+		if (!claimed.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			res.complete(task.call());
+		} catch (Throwable e) {
+			res.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * @return the result, computed here if nobody has started it yet
+	 * @throws Exception
+	 *             whatever the work threw
+	 */
+	T join() throws Exception {
+		run();
+
+		try {
+			return res.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * The result won't be used; work not started yet is skipped, a result
+	 * that is or will be there is given to d
+	 */
+	void cancel(final Discard<T> d) {
+		if (claimed.compareAndSet(false, true)) {
+			return;
+		}
+
+		res.thenAccept(new Consumer<T>() {
+			@Override
+			public void accept(T v) {
+				if (v != null && d != null) {
+					d.discard(v);
+				}
+			}
+		});
+	}
+}
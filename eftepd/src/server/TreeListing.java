@@ -0,0 +1,253 @@
+/*
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+ ---
+ Copyright (C) 2009, Krzysztof Kundzicz <athantor@gmail.com>
+ */
+
+/**
+ *
+ */
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recursive <code>ls -lR</code> style listing of a tree (LIST -R, SITE
+ * TREE).
+ * <p>
+ * Every directory is listed by its own fork-join task, which forks the tasks
+ * of its subdirectories as soon as it's done, as long as less than
+ * {@link #AHEAD} characters are waiting to be sent. The listing is written in
+ * a fixed order anyway: depth first, entries sorted by name. Links are shown
+ * but never followed, so the walk can't leave the tree.
+ *
+ * @author athantor
+ *
+ */
+final class TreeListing {
+
+	private static final Long AHEAD = 4L * 1024 * 1024;
+
+	private static volatile Integer parallelism = Runtime.getRuntime()
+			.availableProcessors();
+	private static ForkJoinPool pool = null;
+
+	private final Node root;
+	private final ZoneId zone = ZoneId.systemDefault();
+	private final Integer year;
+	private final AtomicLong pending = new AtomicLong(0);
+	private final AtomicInteger unreadable = new AtomicInteger(0);
+	private volatile Boolean cancelled = false;
+
+	private static final class Ent {
+		final String name;
+		final Path path;
+		final BasicFileAttributes attrs;
+
+		Ent(String n, Path p, BasicFileAttributes a) {
+			name = n;
+			path = p;
+			attrs = a;
+		}
+	}
+
+	private static final Comparator<Ent> BYNAME = new Comparator<Ent>() {
+		@Override
+		public int compare(Ent a, Ent b) {
+			return a.name.compareTo(b.name);
+		}
+	};
+
+	/**
+	 * @param p
+	 *            how many threads list directories at once, for all trees
+	 */
+	static synchronized void setParallelism(Integer p) {
+		if (p <= 0) {
+			throw new IllegalArgumentException("parallelism <= 0");
+		}
+
+		parallelism = p;
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+
+		return pool;
+	}
+
+	/**
+	 * @param top
+	 *            directory the tree starts at
+	 */
+	TreeListing(File top) {
+		year = LocalDateTime.now(zone).getYear();
+		root = new Node(top.toPath(), ".");
+	}
+
+	/**
+	 * Starts listing in the background
+	 */
+	void start() {
+		getPool().execute(root);
+	}
+
+	/**
+	 * Stops forking more work; used when the listing won't be sent
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Writes the whole tree; the writer isn't flushed
+	 *
+	 * @return number of characters written
+	 * @throws IOException
+	 *             if writing failed
+	 */
+	Long writeTo(Writer w) throws IOException {
+		Long ctr = 0L;
+		ArrayDeque<Node> stack = new ArrayDeque<Node>();
+		stack.push(root);
+
+		try {
+			while (!stack.isEmpty()) {
+				Node n = stack.pop();
+				n.join();
+
+				String hdr = (n == root ? "" : "\r\n") + n.rel + ":\r\n";
+				w.write(hdr);
+				w.append(n.out);
+				ctr += hdr.length() + n.out.length();
+
+				pending.addAndGet(-n.out.length());
+				n.out = null;
+
+				n.forkKids();
+				for (int i = n.kids.size() - 1; i >= 0; i--) {
+					stack.push(n.kids.get(i));
+				}
+			}
+		} finally {
+			cancelled = true;
+		}
+
+		return ctr;
+	}
+
+	/**
+	 * @return number of directories that couldn't be read
+	 */
+	Integer getUnreadable() {
+		return unreadable.get();
+	}
+
+	private final class Node extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+		private final String rel;
+		private final ArrayList<Node> kids = new ArrayList<Node>();
+		private final AtomicBoolean forked = new AtomicBoolean(false);
+		private StringBuilder out = new StringBuilder();
+
+		Node(Path p, String r) {
+			path = p;
+			rel = r;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled) {
+				return;
+			}
+
+			ArrayList<Ent> ents = new ArrayList<Ent>();
+
+			try {
+				DirectoryStream<Path> ds = Files.newDirectoryStream(path);
+				try {
+					for (Path p : ds) {
+						BasicFileAttributes a = DirListing.readLinkAttrs(p);
+
+						if (a != null) {
+							ents.add(new Ent(p.getFileName().toString(), p,
+									a));
+						}
+					}
+				} finally {
+					ds.close();
+				}
+			} catch (IOException e) {
+				unreadable.incrementAndGet();
+			} catch (DirectoryIteratorException e) {
+				unreadable.incrementAndGet();
+			}
+
+			Collections.sort(ents, BYNAME);
+
+			for (Ent e : ents) {
+				DirListing.appendLs(out, e.path, e.attrs, e.name, zone, year);
+
+				if (e.attrs.isDirectory()) {
+					kids.add(new Node(e.path, rel + "/" + e.name));
+				}
+			}
+
+			if (pending.addAndGet(out.length()) < AHEAD) {
+				forkKids();
+			}
+		}
+
+		/**
+		 * Starts listing the subdirectories, unless already started
+		 */
+		void forkKids() {
+			if (cancelled || !forked.compareAndSet(false, true)) {
+				return;
+			}
+
+			for (Node k : kids) {
+				if (ForkJoinTask.inForkJoinPool()) {
+					k.fork();
+				} else {
+					getPool().execute(k);
+				}
+			}
+		}
+	}
+}